@@ -0,0 +1,63 @@
+package com.afforess.sftp.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checksumming of local files, done for every file a sync compares. The file is read from the page
+ * cache after the first iteration, so this measures hashing rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Md5Benchmark {
+	@Param({"1024", "1048576", "67108864"})
+	public int size;
+	private File file;
+
+	@Setup
+	public void createFile() throws IOException {
+		file = File.createTempFile("md5-", ".bin");
+		byte[] buffer = new byte[64 * 1024];
+		Random random = new Random(size);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (int written = 0; written < size; written += buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, Math.min(buffer.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void deleteFile() {
+		file.delete();
+	}
+
+	@Benchmark
+	public String md5() {
+		return DaemonJob.md5(file);
+	}
+}
@@ -0,0 +1,219 @@
+package com.afforess.sftp.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+
+import com.afforess.sftp.sync.benchmark.LocalServer;
+import com.afforess.sftp.sync.benchmark.SyntheticTree;
+import com.afforess.sftp.sync.benchmark.TrafficCounter;
+import com.afforess.sftp.sync.connection.CircuitBreaker;
+import com.afforess.sftp.sync.connection.ConcurrencyController;
+
+/**
+ * Times whole sync cycles against an SSH server on localhost: the first sync of a generated tree, a
+ * recheck with nothing changed, and a recheck after a share of the files changed, in each sync mode.
+ * Nothing leaves the machine, so the numbers show the cost of the sync itself rather than of a network.
+ *
+ * <p>Round trips are the SFTP requests and commands the server answered. Bytes are counted on the wire.
+ * Peak heap adds up the peaks of the heap pools and includes the server, which runs in the same JVM.</p>
+ */
+public class SyncHarness {
+	private static final String USAGE = "Usage: SyncHarness [--tiny files] [--huge files] [--huge-mb size] [--depth levels] "
+			+ "[--churn percent] [--modes clone,mirror,upload] [--result file] [--verbose]";
+	private int tiny = 10000;
+	private int huge = 3;
+	private long hugeSize = 64 * 1024 * 1024L;
+	private int depth = 32;
+	private double churn = 0.01D;
+	private List<SyncMode> modes = new ArrayList<SyncMode>();
+	private File result = new File("sync-result.json");
+	private final List<Phase> phases = new ArrayList<Phase>();
+
+	public static void main(String[] args) throws Exception {
+		SyncHarness harness = new SyncHarness();
+		boolean verbose = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--help")) {
+					System.out.println(USAGE);
+					return;
+				} else if (arg.equals("--verbose")) {
+					verbose = true;
+				} else if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				} else if (arg.equals("--tiny")) {
+					harness.tiny = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--huge")) {
+					harness.huge = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--huge-mb")) {
+					harness.hugeSize = Long.parseLong(args[++i]) * 1024 * 1024L;
+				} else if (arg.equals("--depth")) {
+					harness.depth = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--churn")) {
+					harness.churn = Double.parseDouble(args[++i]) / 100D;
+				} else if (arg.equals("--modes")) {
+					for (String mode : args[++i].split(",")) {
+						harness.modes.add(SyncMode.valueOf(mode.trim().toUpperCase(Locale.ROOT)));
+					}
+				} else if (arg.equals("--result")) {
+					harness.result = new File(args[++i]);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		if (harness.modes.isEmpty()) {
+			for (SyncMode mode : SyncMode.values()) {
+				harness.modes.add(mode);
+			}
+		}
+		Logger.getLogger("sftp-sync").setLevel(verbose ? Level.INFO : Level.WARNING);
+		harness.run();
+	}
+
+	private void run() throws Exception {
+		File work = Files.createTempDirectory("sync-harness-").toFile();
+		String home = System.getProperty("user.home");
+		//Keeps the sync indexes out of the real working directory
+		System.setProperty("user.home", new File(work, "home").getAbsolutePath());
+		LocalServer server = new LocalServer();
+		TrafficCounter counter = new TrafficCounter(server.getPort());
+		try {
+			System.out.println(String.format("%-7s %-8s %10s %8s %10s %10s %10s %12s %8s %9s %7s", "Mode", "Phase", "Time ms", "Files",
+					"Files/s", "Bytes", "MB/s", "Round trips", "Sessions", "Heap MB", "Result"));
+			for (SyncMode mode : modes) {
+				run(mode, new File(work, mode.name().toLowerCase(Locale.ROOT)), server, counter);
+			}
+		} finally {
+			counter.close();
+			server.close();
+			System.setProperty("user.home", home);
+			FileUtils.deleteQuietly(work);
+		}
+		write(result);
+		System.out.println("Results written to " + result.getAbsolutePath());
+	}
+
+	private void run(SyncMode mode, File directory, LocalServer server, TrafficCounter counter) throws Exception {
+		File remote = new File(directory, "remote");
+		File local = new File(directory, "local");
+		File source = mode == SyncMode.CLONE ? remote : local;
+		File target = mode == SyncMode.CLONE ? local : remote;
+		SyntheticTree tree = SyntheticTree.generate(source, tiny, huge, hugeSize, depth, 42L);
+		target.mkdirs();
+		ServerEntry entry = server.entry("harness-" + mode.name().toLowerCase(Locale.ROOT), remote, local, mode.getMode());
+		entry.setPort(counter.getPort());
+		CircuitBreaker breaker = new CircuitBreaker(entry.getAlias());
+		ConcurrencyController controller = new ConcurrencyController(entry.getAlias(), entry.settings().getMaxConnections(), entry.settings().isAdaptive());
+		sync(mode, "initial", tree, target, entry, breaker, controller, server, counter);
+		sync(mode, "recheck", tree, target, entry, breaker, controller, server, counter);
+		tree.churn(churn);
+		sync(mode, "churn", tree, target, entry, breaker, controller, server, counter);
+		FileUtils.deleteQuietly(directory);
+	}
+
+	private void sync(SyncMode mode, String name, SyntheticTree tree, File target, ServerEntry entry, CircuitBreaker breaker,
+			ConcurrencyController controller, LocalServer server, TrafficCounter counter) throws InterruptedException {
+		Phase phase = new Phase(mode, name, tree.getFiles());
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pools.add(pool);
+			}
+		}
+		System.gc();
+		for (MemoryPoolMXBean pool : pools) {
+			pool.resetPeakUsage();
+		}
+		long sessions = server.getSessions();
+		long requests = server.getRequests();
+		long commands = server.getCommands();
+		long bytes = counter.getSent() + counter.getReceived();
+		long time = System.nanoTime();
+		ExecutorService executor = ServerDaemon.newExecutor(entry, new NamedThreadFactory("Harness [" + entry.getAlias() + "] Task - %1"));
+		new DaemonJob(executor, entry, breaker, controller).run();
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		phase.nanos = System.nanoTime() - time;
+		phase.bytes = counter.getSent() + counter.getReceived() - bytes;
+		phase.requests = server.getRequests() - requests;
+		phase.commands = server.getCommands() - commands;
+		phase.sessions = server.getSessions() - sessions;
+		for (MemoryPoolMXBean pool : pools) {
+			phase.peakHeap += pool.getPeakUsage().getUsed();
+		}
+		phase.mismatches = tree.countMismatches(target);
+		phases.add(phase);
+		System.out.println(phase);
+	}
+
+	private void write(File file) throws IOException {
+		PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8.name());
+		try {
+			out.println("[");
+			for (int i = 0; i < phases.size(); i++) {
+				out.print("    " + phases.get(i).toJson());
+				out.println(i < phases.size() - 1 ? "," : "");
+			}
+			out.println("]");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static class Phase {
+		final SyncMode mode;
+		final String name;
+		final int files;
+		long nanos;
+		long bytes;
+		long requests;
+		long commands;
+		long sessions;
+		long peakHeap;
+		int mismatches;
+		Phase(SyncMode mode, String name, int files) {
+			this.mode = mode;
+			this.name = name;
+			this.files = files;
+		}
+
+		double seconds() {
+			return nanos / 1E9D;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%-7s %-8s %10d %8d %10.1f %10d %10.1f %12d %8d %9.1f %7s", mode.name().toLowerCase(Locale.ROOT), name,
+					nanos / 1000000L, files, files / seconds(), bytes, bytes / seconds() / (1024D * 1024D), requests + commands, sessions,
+					peakHeap / (1024D * 1024D), mismatches == 0 ? "ok" : mismatches + " bad");
+		}
+
+		String toJson() {
+			return String.format(Locale.ROOT, "{\"mode\": \"%s\", \"phase\": \"%s\", \"wallMillis\": %d, \"files\": %d, \"filesPerSecond\": %.1f, "
+					+ "\"bytes\": %d, \"bytesPerSecond\": %.0f, \"roundTrips\": %d, \"sftpRequests\": %d, \"commands\": %d, \"sessions\": %d, "
+					+ "\"peakHeapBytes\": %d, \"mismatchedFiles\": %d}", mode.name().toLowerCase(Locale.ROOT), name, nanos / 1000000L, files,
+					files / seconds(), bytes, bytes / seconds(), requests + commands, requests, commands, sessions, peakHeap, mismatches);
+		}
+	}
+}
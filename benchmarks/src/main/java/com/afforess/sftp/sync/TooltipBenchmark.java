@@ -0,0 +1,87 @@
+package com.afforess.sftp.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the tray tooltip from the lines of running tasks, alone and while transfers start and finish,
+ * which take the same lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TooltipBenchmark {
+	@Param({"1", "16", "256"})
+	public int lines;
+	private final List<TooltipLine> added = new ArrayList<TooltipLine>();
+
+	@Setup
+	public void addLines() {
+		for (int i = 0; i < lines; i++) {
+			TooltipLine line = new Line("DL [" + i + "/" + lines + "] - file-" + i + ".dat - 42.5%", i % 4 == 3);
+			TrayTooltip.add(line);
+			added.add(line);
+		}
+	}
+
+	@TearDown
+	public void removeLines() {
+		for (TooltipLine line : added) {
+			TrayTooltip.remove(line);
+		}
+		added.clear();
+	}
+
+	@Benchmark
+	public String aggregate() {
+		StringBuilder builder = new StringBuilder();
+		TrayTooltip.append(builder);
+		return builder.toString();
+	}
+
+	@Benchmark
+	@Group("contended")
+	public String contendedAggregate() {
+		return aggregate();
+	}
+
+	@Benchmark
+	@Group("contended")
+	public void contendedTransfer() {
+		TooltipLine line = new Line("UL [1/1] - transfer.dat - 0.0%", false);
+		TrayTooltip.add(line);
+		TrayTooltip.remove(line);
+	}
+
+	private static class Line implements TooltipLine {
+		private final String text;
+		private final boolean hidden;
+		Line(String text, boolean hidden) {
+			this.text = text;
+			this.hidden = hidden;
+		}
+
+		@Override
+		public String getTooltip() {
+			return hidden ? null : text;
+		}
+	}
+}
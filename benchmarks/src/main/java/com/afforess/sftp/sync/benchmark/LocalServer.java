@@ -0,0 +1,124 @@
+package com.afforess.sftp.sync.benchmark;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.common.signature.BuiltinSignatures;
+import org.apache.sshd.server.ServerBuilder;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.command.CommandFactory;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import com.afforess.sftp.sync.ServerEntry;
+
+/**
+ * An SSH server on localhost serving SFTP and exec channels from the real file system, so that the
+ * connection code can be measured without a network or a remote machine. Exec commands run through
+ * /bin/sh, as they would on the servers this is meant to stand in for.
+ *
+ * <p>Sessions opened, SFTP requests and commands run are counted, each request or command being one
+ * round trip the client waits on.</p>
+ */
+public class LocalServer implements Closeable {
+	public static final String USERNAME = "sync";
+	public static final String PASSWORD = "sync";
+	private final SshServer sshd;
+	private final AtomicLong sessions = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong commands = new AtomicLong();
+
+	@SuppressWarnings("deprecation")
+	public LocalServer() throws IOException {
+		sshd = SshServer.setUpDefaultServer();
+		sshd.setHost("127.0.0.1");
+		sshd.setPort(0);
+		SimpleGeneratorHostKeyProvider keys = new SimpleGeneratorHostKeyProvider();
+		keys.setAlgorithm(KeyUtils.RSA_ALGORITHM);
+		sshd.setKeyPairProvider(keys);
+		// JSch 0.1.50 predates the curve and sha2 algorithms a server offers by default
+		sshd.setKeyExchangeFactories(NamedFactory.setUpTransformedFactories(false,
+				Arrays.asList(BuiltinDHFactories.dhgex256, BuiltinDHFactories.dhg14, BuiltinDHFactories.dhgex, BuiltinDHFactories.dhg1), ServerBuilder.DH2KEX));
+		sshd.setSignatureFactories(Arrays.<NamedFactory<org.apache.sshd.common.signature.Signature>>asList(BuiltinSignatures.rsa));
+		sshd.setPasswordAuthenticator(new PasswordAuthenticator() {
+			@Override
+			public boolean authenticate(String username, String password, ServerSession session) {
+				return USERNAME.equals(username) && PASSWORD.equals(password);
+			}
+		});
+		sshd.addSessionListener(new SessionListener() {
+			@Override
+			public void sessionCreated(Session session) {
+				sessions.incrementAndGet();
+			}
+		});
+		SftpSubsystemFactory sftp = new SftpSubsystemFactory();
+		sftp.addSftpEventListener(new SftpEventListener() {
+			@Override
+			public void received(ServerSession session, int type, int id) {
+				requests.incrementAndGet();
+			}
+		});
+		sshd.setSubsystemFactories(Collections.singletonList(sftp));
+		sshd.setCommandFactory(new CommandFactory() {
+			@Override
+			public Command createCommand(ChannelSession channel, String command) throws IOException {
+				commands.incrementAndGet();
+				return new ProcessShellFactory(command, "/bin/sh", "-c", command).createShell(channel);
+			}
+		});
+		sshd.start();
+	}
+
+	public int getPort() {
+		return sshd.getPort();
+	}
+
+	public long getSessions() {
+		return sessions.get();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getCommands() {
+		return commands.get();
+	}
+
+	/**
+	 * A server entry syncing the remote directory into the local one through this server.
+	 */
+	public ServerEntry entry(String alias, File remoteDir, File localDir, int syncMode) {
+		ServerEntry entry = new ServerEntry();
+		entry.setAlias(alias);
+		entry.setServerHostname("127.0.0.1");
+		entry.setPort(getPort());
+		entry.setUsername(USERNAME);
+		entry.setPassword(PASSWORD);
+		entry.setRemoteDir(remoteDir.getAbsolutePath());
+		entry.setLocalDir(localDir.getAbsolutePath());
+		entry.setSyncMode(syncMode);
+		return entry;
+	}
+
+	@Override
+	public void close() throws IOException {
+		sshd.stop(true);
+	}
+}
@@ -0,0 +1,119 @@
+package com.afforess.sftp.sync.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A generated tree mixing the shapes that stress a sync differently: many tiny files spread over
+ * directories, a few huge files, and one deeply nested chain of directories. Contents are random, so
+ * neither compression nor deduplication flatters the numbers, and generated from a seed, so every run
+ * syncs the same tree.
+ */
+public class SyntheticTree {
+	private static final int FILES_PER_DIRECTORY = 100;
+	private static final int TINY_MAX = 4 * 1024;
+	private static final int DEEP_FILE = 1024;
+	private final File root;
+	private final Random random;
+	private final List<File> files = new ArrayList<File>();
+	private long bytes = 0L;
+
+	private SyntheticTree(File root, long seed) {
+		this.root = root;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Generates the tree under the root. Every file is dated a day back, so that a sync right after is not
+	 * confused by modification times in the current second.
+	 */
+	public static SyntheticTree generate(File root, int tiny, int huge, long hugeSize, int depth, long seed) throws IOException {
+		SyntheticTree tree = new SyntheticTree(root, seed);
+		long modified = (System.currentTimeMillis() - 24 * 60 * 60 * 1000L) / 1000L * 1000L;
+		for (int i = 0; i < tiny; i++) {
+			File directory = new File(root, "small/d" + (i / FILES_PER_DIRECTORY));
+			tree.create(new File(directory, "f" + i + ".dat"), tree.random.nextInt(TINY_MAX + 1), modified);
+		}
+		for (int i = 0; i < huge; i++) {
+			tree.create(new File(root, "large/huge-" + i + ".bin"), hugeSize, modified);
+		}
+		File directory = new File(root, "deep");
+		for (int i = 0; i < depth; i++) {
+			directory = new File(directory, "level-" + i);
+			tree.create(new File(directory, "a.txt"), DEEP_FILE, modified);
+			tree.create(new File(directory, "b.txt"), DEEP_FILE, modified);
+		}
+		return tree;
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	public int getFiles() {
+		return files.size();
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Rewrites the given fraction of files, at least one, with new contents of the same size and a later
+	 * modification time. Returns the bytes rewritten.
+	 */
+	public long churn(double fraction) throws IOException {
+		List<File> shuffled = new ArrayList<File>(files);
+		Collections.shuffle(shuffled, random);
+		int count = Math.max(1, (int) Math.round(files.size() * fraction));
+		long rewritten = 0L;
+		for (File file : shuffled.subList(0, Math.min(count, shuffled.size()))) {
+			long size = file.length();
+			write(file, size, file.lastModified() + 60 * 1000L);
+			rewritten += size;
+		}
+		return rewritten;
+	}
+
+	/**
+	 * Counts the files of this tree that are missing from the copy or differ from it in size.
+	 */
+	public int countMismatches(File copy) {
+		String prefix = root.getAbsolutePath();
+		int mismatches = 0;
+		for (File file : files) {
+			File other = new File(copy, file.getAbsolutePath().substring(prefix.length()));
+			if (!other.isFile() || other.length() != file.length()) {
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+
+	private void create(File file, long size, long modified) throws IOException {
+		file.getParentFile().mkdirs();
+		write(file, size, modified);
+		files.add(file);
+		bytes += size;
+	}
+
+	private void write(File file, long size, long modified) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(size, 1024 * 1024)];
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (long written = 0L; written < size; written += buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+		file.setLastModified(modified);
+	}
+}
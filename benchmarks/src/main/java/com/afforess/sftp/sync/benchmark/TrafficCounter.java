@@ -0,0 +1,119 @@
+package com.afforess.sftp.sync.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forwards connections on a local port to another, counting the bytes sent each way. Placed between
+ * the client and the local server it measures what crosses the wire, after encryption and compression.
+ */
+public class TrafficCounter implements Closeable {
+	private final int target;
+	private final ServerSocket listener;
+	private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+
+	public TrafficCounter(int target) throws IOException {
+		this.target = target;
+		this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		start(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "Traffic Counter");
+	}
+
+	public int getPort() {
+		return listener.getLocalPort();
+	}
+
+	/**
+	 * Bytes sent from clients to the server.
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * Bytes received by clients from the server.
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	private void accept() {
+		while (!listener.isClosed()) {
+			try {
+				final Socket client = listener.accept();
+				final Socket server = new Socket(InetAddress.getLoopbackAddress(), target);
+				client.setTcpNoDelay(true);
+				server.setTcpNoDelay(true);
+				sockets.add(client);
+				sockets.add(server);
+				start(new Runnable() {
+					@Override
+					public void run() {
+						pump(client, server, sent);
+					}
+				}, "Traffic Counter - up");
+				start(new Runnable() {
+					@Override
+					public void run() {
+						pump(server, client, received);
+					}
+				}, "Traffic Counter - down");
+			} catch (IOException e) {
+				//Closed
+			}
+		}
+	}
+
+	private void pump(Socket from, Socket to, AtomicLong counter) {
+		byte[] buffer = new byte[64 * 1024];
+		try {
+			InputStream in = from.getInputStream();
+			OutputStream out = to.getOutputStream();
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+				counter.addAndGet(read);
+			}
+		} catch (IOException e) {
+			//Either side went away
+		} finally {
+			close(from);
+			close(to);
+		}
+	}
+
+	private static void start(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void close(Socket socket) {
+		sockets.remove(socket);
+		try {
+			socket.close();
+		} catch (IOException e) { }
+	}
+
+	@Override
+	public void close() throws IOException {
+		listener.close();
+		for (Socket socket : sockets) {
+			close(socket);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.SftpATTRS;
+
+/**
+ * Turning directory listings into remote files, both from an SFTP listing and from the output of the
+ * find command a remote snapshot is read from. The listings are built in memory, so only the parsing and
+ * construction of remote files is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListingBenchmark {
+	private static final String ROOT = "/srv/sync";
+	@Param({"100", "10000"})
+	public int entries;
+	private final ChannelSftp channel = new ChannelSftp();
+	private List<LsEntry> listing;
+	private byte[] snapshot;
+
+	@Setup
+	public void createListings() throws Exception {
+		// JSch only creates these while parsing replies, so the constructors are opened up here
+		Constructor<LsEntry> entry = LsEntry.class.getDeclaredConstructor(ChannelSftp.class, String.class, String.class, SftpATTRS.class);
+		entry.setAccessible(true);
+		Constructor<SftpATTRS> attributes = SftpATTRS.class.getDeclaredConstructor();
+		attributes.setAccessible(true);
+		int now = (int) (System.currentTimeMillis() / 1000L);
+		listing = new ArrayList<LsEntry>(entries + 2);
+		listing.add(entry.newInstance(channel, ".", "drwxr-xr-x 2 sync sync 4096 Jan 1 00:00 .", directory(attributes.newInstance(), now)));
+		listing.add(entry.newInstance(channel, "..", "drwxr-xr-x 2 sync sync 4096 Jan 1 00:00 ..", directory(attributes.newInstance(), now)));
+		ByteArrayOutputStream find = new ByteArrayOutputStream(entries * 48);
+		for (int i = 0; i < entries; i++) {
+			SftpATTRS attrs = attributes.newInstance();
+			attrs.setSIZE(i * 31L);
+			attrs.setPERMISSIONS(0100644);
+			attrs.setACMODTIME(now - i, now - i);
+			String name = "file-" + i + ".dat";
+			listing.add(entry.newInstance(channel, name, "-rw-r--r-- 1 sync sync " + (i * 31L) + " Jan 1 00:00 " + name, attrs));
+			if (i % 100 == 0) {
+				find.write(("d 4096 " + now + ".0000000000 d" + (i / 100) + "\0").getBytes(StandardCharsets.UTF_8));
+			}
+			find.write(("f " + (i * 31L) + " " + (now - i) + ".0000000000 d" + (i / 100) + "/" + name + "\0").getBytes(StandardCharsets.UTF_8));
+		}
+		snapshot = find.toByteArray();
+	}
+
+	private static SftpATTRS directory(SftpATTRS attrs, int modified) {
+		attrs.setSIZE(4096L);
+		attrs.setPERMISSIONS(040755);
+		attrs.setACMODTIME(modified, modified);
+		return attrs;
+	}
+
+	@Benchmark
+	public List<RemoteFile> listing() {
+		return SFTPConnection.toRemoteFiles(ROOT + "/listing", listing, channel, null);
+	}
+
+	@Benchmark
+	public RemoteSnapshot snapshot() throws IOException {
+		return RemoteSnapshot.read(ROOT, new ByteArrayInputStream(snapshot));
+	}
+}
@@ -0,0 +1,73 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.afforess.sftp.sync.ServerEntry;
+import com.afforess.sftp.sync.benchmark.LocalServer;
+
+/**
+ * Checking connections out of the pool and back in, with more threads than connections as when a large
+ * sync is running. Every connection is opened before measuring, so handshakes are not counted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class PoolBenchmark {
+	@Param({"4", "16"})
+	public int connections;
+	private File root;
+	private LocalServer server;
+	private SSHPool pool;
+
+	@Setup
+	public void openPool() throws IOException {
+		root = Files.createTempDirectory("pool-").toFile();
+		server = new LocalServer();
+		ServerEntry entry = server.entry("pool", root, root, 0);
+		entry.settings().setMaxConnections(connections);
+		pool = new SSHPool(entry, new CircuitBreaker("pool"), new ConcurrencyController("pool", connections, false));
+		List<SFTPConnection> opened = new ArrayList<SFTPConnection>();
+		for (int i = 0; i < connections; i++) {
+			opened.add(pool.getConnection());
+		}
+		for (SFTPConnection conn : opened) {
+			conn.close();
+		}
+	}
+
+	@TearDown
+	public void closePool() throws IOException {
+		pool.clear();
+		server.close();
+		root.delete();
+	}
+
+	@Benchmark
+	public void checkout() {
+		SFTPConnection conn = pool.getConnection();
+		conn.close();
+	}
+}
@@ -0,0 +1,121 @@
+package com.afforess.sftp.sync.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.afforess.sftp.sync.ServerEntry;
+import com.afforess.sftp.sync.benchmark.LocalServer;
+import com.afforess.sftp.sync.exception.SFTPException;
+
+public class SSHPoolTest {
+	private static final int BORROWERS = 8;
+	private static final int CHANNELS_PER_SESSION = 4;
+	private File root;
+	private LocalServer server;
+	private ExecutorService threads;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("pool-").toFile();
+		server = new LocalServer();
+		threads = Executors.newFixedThreadPool(BORROWERS);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		threads.shutdownNow();
+		server.close();
+		root.delete();
+	}
+
+	@Test
+	public void concurrentBorrowersShareSessions() throws Exception {
+		ServerEntry entry = entry(server.getPort());
+		SSHPool pool = pool(entry);
+		try {
+			List<SFTPConnection> borrowed = new ArrayList<SFTPConnection>();
+			for (Future<SFTPConnection> result : borrowAtOnce(pool)) {
+				borrowed.add(result.get(30, TimeUnit.SECONDS));
+			}
+			assertEquals(BORROWERS / CHANNELS_PER_SESSION, server.getSessions());
+			for (SFTPConnection conn : borrowed) {
+				conn.close();
+			}
+		} finally {
+			pool.clear();
+		}
+	}
+
+	@Test
+	public void failedSessionReleasesWaitingBorrowers() throws Exception {
+		ServerSocket closed = new ServerSocket(0);
+		int port = closed.getLocalPort();
+		closed.close();
+		SSHPool pool = pool(entry(port));
+		try {
+			for (Future<SFTPConnection> result : borrowAtOnce(pool)) {
+				try {
+					result.get(30, TimeUnit.SECONDS);
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof SFTPException);
+				}
+			}
+		} finally {
+			pool.clear();
+		}
+		//The failed session and its reservations are gone, so the server is used once it is reachable
+		SSHPool retry = pool(entry(server.getPort()));
+		try {
+			retry.getConnection().close();
+			assertEquals(1, server.getSessions());
+		} finally {
+			retry.clear();
+		}
+	}
+
+	private List<Future<SFTPConnection>> borrowAtOnce(final SSHPool pool) {
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<SFTPConnection>> results = new ArrayList<Future<SFTPConnection>>();
+		for (int i = 0; i < BORROWERS; i++) {
+			results.add(threads.submit(new Callable<SFTPConnection>() {
+				@Override
+				public SFTPConnection call() throws Exception {
+					start.await();
+					return pool.getConnection();
+				}
+			}));
+		}
+		start.countDown();
+		return results;
+	}
+
+	private ServerEntry entry(int port) {
+		ServerEntry entry = server.entry("pool", root, root, 0);
+		entry.setPort(port);
+		entry.settings().setMaxConnections(BORROWERS);
+		entry.settings().setChannelsPerSession(CHANNELS_PER_SESSION);
+		return entry;
+	}
+
+	private static SSHPool pool(ServerEntry entry) {
+		return new SSHPool(entry, new CircuitBreaker(entry.getAlias()), new ConcurrencyController(entry.getAlias(), BORROWERS, false));
+	}
+}
@@ -0,0 +1,24 @@
+package com.afforess.sftp.sync;
+
+public enum CompareMode {
+	CHECKSUM("checksum"),
+	SIZE_MTIME("size-mtime");
+
+	final String name;
+	CompareMode(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public static CompareMode getModeByName(String name) {
+		for (CompareMode m : values()) {
+			if (m.getName().equalsIgnoreCase(name)) {
+				return m;
+			}
+		}
+		return CHECKSUM;
+	}
+}
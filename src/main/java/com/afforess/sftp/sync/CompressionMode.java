@@ -0,0 +1,32 @@
+package com.afforess.sftp.sync;
+
+public enum CompressionMode {
+	OFF("off"),
+	ON("on"),
+	AUTO("auto");
+
+	final String name;
+	CompressionMode(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Whether a transfer should use a compressed session, given whether its data looks compressible.
+	 */
+	public boolean compress(boolean compressible) {
+		return this == ON || (this == AUTO && compressible);
+	}
+
+	public static CompressionMode getModeByName(String name) {
+		for (CompressionMode m : values()) {
+			if (m.getName().equalsIgnoreCase(name)) {
+				return m;
+			}
+		}
+		return OFF;
+	}
+}
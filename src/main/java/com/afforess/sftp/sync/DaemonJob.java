@@ -2,12 +2,18 @@ package com.afforess.sftp.sync;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -19,23 +25,61 @@ import java.util.logging.Logger;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 
+import com.afforess.sftp.sync.connection.CircuitBreaker;
+import com.afforess.sftp.sync.connection.Compressibility;
+import com.afforess.sftp.sync.connection.ConcurrencyController;
+import com.afforess.sftp.sync.connection.DeltaTransfer;
+import com.afforess.sftp.sync.connection.DigestListener;
+import com.afforess.sftp.sync.connection.ProgressMonitor;
 import com.afforess.sftp.sync.connection.RemoteFile;
+import com.afforess.sftp.sync.connection.RemoteSnapshot;
 import com.afforess.sftp.sync.connection.SFTPConnection;
 import com.afforess.sftp.sync.connection.SSHPool;
+import com.afforess.sftp.sync.connection.TarTransfer;
+import com.afforess.sftp.sync.exception.SFTPException;
+import com.afforess.sftp.sync.exception.SFTPOfflineException;
+import com.afforess.sftp.sync.index.DirectoryIndex;
+import com.afforess.sftp.sync.index.IndexEntry;
+import com.afforess.sftp.sync.index.SyncIndex;
 import com.google.common.collect.Sets;
 
 public class DaemonJob implements Runnable {
 	private static final Logger logger = Logger.getLogger("sftp-sync");
+	private static final long HOT_PATH_LEAD = 10 * 60 * 1000L;
+	private static final int BATCH_MIN_FILES = 8;
+	private static final int BATCH_MAX_FILES = 256;
+	private static final long RESUMABLE_SIZE = 1024 * 1024L;
 	private final ExecutorService executor;
 	private final ServerEntry server;
 	private final SSHPool pool;
+	private final SyncIndex index;
 	private final Set<String> lockedFiles = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	private final AtomicInteger activeJobs = new AtomicInteger(0);
 	private final AtomicBoolean shutdown = new AtomicBoolean(false);
-	public DaemonJob(ExecutorService service, ServerEntry server) {
+	private final Collection<File> changed;
+	private final List<PathMatcher> hotPaths = new ArrayList<PathMatcher>();
+	private volatile RemoteSnapshot snapshot = null;
+	private volatile boolean batching = true;
+	public DaemonJob(ExecutorService service, ServerEntry server, CircuitBreaker breaker, ConcurrencyController controller) {
+		this(service, server, breaker, controller, null);
+	}
+
+	/**
+	 * Creates a job that only uploads the given local files and directories instead of scanning the whole tree.
+	 */
+	public DaemonJob(ExecutorService service, ServerEntry server, CircuitBreaker breaker, ConcurrencyController controller, Collection<File> changed) {
 		this.executor = service;
 		this.server = server;
-		this.pool = new SSHPool(server);
+		this.pool = new SSHPool(server, breaker, controller);
+		this.index = new SyncIndex(server);
+		this.changed = changed;
+		for (String glob : server.settings().getHotPaths()) {
+			try {
+				hotPaths.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+			} catch (IllegalArgumentException e) {
+				logger.warning("Ignoring invalid hot path [" + glob + "]: " + e.getMessage());
+			}
+		}
 	}
 
 	public void shutdown() {
@@ -49,6 +93,9 @@ public class DaemonJob implements Runnable {
 			}
 		});
 		this.shutdown.set(true);
+		synchronized(activeJobs) {
+			activeJobs.notifyAll();
+		}
 		shutdown.start();
 		try {
 			shutdown.join(10 * 1000L);
@@ -60,30 +107,68 @@ public class DaemonJob implements Runnable {
 		File localDir = new File(server.getLocalDir());
 		localDir.mkdirs();
 		Runnable root;
-		if (server.getSyncMode() == SyncMode.CLONE.getMode()) {
+		if (changed != null) {
+			root = new ChangedFilesRunnable(localDir, server.getRemoteDir(), changed);
+		} else if (server.getSyncMode() == SyncMode.CLONE.getMode()) {
+			if (server.settings().isRemoteSnapshot()) {
+				takeSnapshot();
+			}
 			root = new CloneTraversalRunnable(localDir, server.getRemoteDir());
 		} else {
 			root = new UploadTraversalRunnable(localDir, server.getRemoteDir());
 		}
 		try {
 			root.run();
-			while (activeJobs.get() > 0 && !this.shutdown.get()) {
-				Thread.sleep(1000L);
+			synchronized(activeJobs) {
+				while (activeJobs.get() > 0 && !this.shutdown.get()) {
+					activeJobs.wait();
+				}
 			}
 			if (!this.shutdown.get()) {
 				executor.shutdown();
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		} catch (Exception e) {
 			logger.log(Level.SEVERE, "Unexpected exception", e);
 		} finally {
+			index.flush();
 			pool.clear();
 		}
 	}
 
-	private class CloneTraversalRunnable implements Runnable, TooltipLine {
+	/**
+	 * Called as each task ends, waking run() the moment the last one finishes.
+	 */
+	private void taskFinished() {
+		if (activeJobs.decrementAndGet() == 0) {
+			synchronized(activeJobs) {
+				activeJobs.notifyAll();
+			}
+		}
+	}
+
+	private void takeSnapshot() {
+		SFTPConnection conn = null;
+		try {
+			conn = pool.getConnection();
+			long time = System.nanoTime();
+			snapshot = conn.snapshot(server.getRemoteDir());
+			if (snapshot != null) {
+				logger.info("Listed " + snapshot.size() + " remote entries in " + (System.nanoTime() - time) / 1000000L + " ms");
+			}
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Unable to take remote snapshot, listing directories instead", e);
+		} finally {
+			if (conn != null) conn.close();
+		}
+	}
+
+	private class CloneTraversalRunnable extends ScheduledTask implements TooltipLine {
 		final String directory;
 		final File localDirectory;
 		CloneTraversalRunnable(File localDirectory, String directory) {
+			super(System.currentTimeMillis());
 			this.localDirectory = localDirectory;
 			this.directory = directory;
 			activeJobs.incrementAndGet();
@@ -98,34 +183,79 @@ public class DaemonJob implements Runnable {
 			}
 			logger.info("Checking directory [" + directory + "]");
 			SFTPConnection conn = null;
+			final DirectoryIndex dirIndex = index.open(directory);
 			try {
-				SFTPService.addTooltip(this);
-				conn = pool.getConnection();
-				List<RemoteFile> files = conn.listFiles(directory);
+				TrayTooltip.add(this);
+				List<RemoteFile> files;
+				if (snapshot != null) {
+					files = snapshot.take(directory);
+				} else {
+					conn = pool.getConnection();
+					files = conn.listFiles(directory);
+				}
+				Set<String> names = new HashSet<String>();
+				int unchangedFiles = 0;
+				final Map<String, RemoteFile> unhashed = new LinkedHashMap<String, RemoteFile>();
+				final List<BatchItem> batch = new ArrayList<BatchItem>();
 				for (RemoteFile file : files) {
 					//Ignore ourselves
 					if (file.getPath().equals(directory)) {
 						continue;
 					}
+					if (PartialDownload.isPartial(file.getName())) {
+						continue;
+					}
 					File local = new File(localDirectory, file.getName());
 					Runnable task;
 					if (file.isDirectory()) {
 						task = new CloneTraversalRunnable(local, file.getPath());
 					} else {
-						task = new FileDownloadRunnable(local, file.getPath());
+						names.add(file.getName());
+						IndexEntry entry = dirIndex.get(file.getName());
+						//Neither side changed since the last sync, no need to revisit
+						if ((entry != null && entry.isSynced(local, file)) || sameAttributes(local, file)) {
+							unchangedFiles++;
+							continue;
+						}
+						if (entry == null || !entry.matchesRemote(file)) {
+							unhashed.put(file.getName(), file);
+							continue;
+						}
+						task = downloadTask(local, file, entry != null ? entry.getRemoteMd5() : null, dirIndex, batch);
 					}
 					//logger.info("Remote file: [" + file.getPath() + "]. Task: " + (task != null ? task.getClass().getSimpleName() : "null"));
 					if (task != null) {
 						executor.execute(task);
 					}
 				}
-			} catch (Exception e) {
-				if (!Thread.currentThread().isInterrupted()) {
-					logger.log(Level.SEVERE, "Error cloning file: " + directory, e);
+				logger.fine("Revisiting " + (names.size() - unchangedFiles) + " of " + names.size() + " files in [" + directory + "]");
+				dirIndex.retainAll(names);
+				if (!unhashed.isEmpty() && conn == null) {
+					conn = pool.getConnection();
 				}
+				hashFiles(conn, directory, unhashed, new DigestListener() {
+					@Override
+					public void digest(String name, String md5) {
+						RemoteFile file = unhashed.remove(name);
+						Runnable task = file != null ? downloadTask(new File(localDirectory, name), file, md5, dirIndex, batch) : null;
+						if (task != null) {
+							executor.execute(task);
+						}
+					}
+				});
+				for (RemoteFile file : unhashed.values()) {
+					Runnable task = downloadTask(new File(localDirectory, file.getName()), file, null, dirIndex, batch);
+					if (task != null) {
+						executor.execute(task);
+					}
+				}
+				submitBatch(batch, false, localDirectory, directory, dirIndex);
+			} catch (Exception e) {
+				logFailure("Error cloning file: " + directory, e);
 			} finally {
-				activeJobs.decrementAndGet();
-				SFTPService.removeTooltip(this);
+				index.release(dirIndex);
+				taskFinished();
+				TrayTooltip.remove(this);
 				if (conn != null) conn.close();
 			}
 		}
@@ -136,10 +266,11 @@ public class DaemonJob implements Runnable {
 		}
 	}
 
-	private class UploadTraversalRunnable implements Runnable, TooltipLine {
+	private class UploadTraversalRunnable extends ScheduledTask implements TooltipLine {
 		final String directory;
 		final File localDirectory;
 		UploadTraversalRunnable(File localDirectory, String directory) {
+			super(System.currentTimeMillis());
 			this.localDirectory = localDirectory;
 			this.directory = directory;
 			activeJobs.incrementAndGet();
@@ -148,30 +279,69 @@ public class DaemonJob implements Runnable {
 		@Override
 		public void run() {
 			SFTPConnection conn = null;
+			final DirectoryIndex dirIndex = index.open(directory);
 			logger.info("Checking directory [" + directory + "]");
 			try {
-				SFTPService.addTooltip(this);
+				TrayTooltip.add(this);
 				conn = pool.getConnection();
-				if (conn.getFile(directory) == null) {
+				Map<String, RemoteFile> remoteFiles = new HashMap<String, RemoteFile>();
+				for (RemoteFile file : conn.listFiles(directory)) {
+					if (!file.getPath().equals(directory)) {
+						remoteFiles.put(file.getName(), file);
+					}
+				}
+				if (remoteFiles.isEmpty() && conn.getFile(directory) == null) {
 					conn.mkdir(directory);
 				}
+				Set<String> names = new HashSet<String>();
+				final Map<String, RemoteFile> unhashed = new LinkedHashMap<String, RemoteFile>();
+				final List<BatchItem> batch = new ArrayList<BatchItem>();
 				File[] localFiles = localDirectory.listFiles();
 				for (File local : localFiles) {
+					if (PartialDownload.isPartial(local.getName())) {
+						continue;
+					}
 					Runnable task;
 					if (local.isDirectory()) {
 						task = new UploadTraversalRunnable(local, directory + "/" + local.getName());
 					} else {
-						task = new FileUploadRunnable(local, directory + "/" + local.getName());
+						names.add(local.getName());
+						RemoteFile remote = remoteFiles.get(local.getName());
+						IndexEntry entry = dirIndex.get(local.getName());
+						if (remote != null && !remote.isDirectory() && (entry == null || !entry.matchesRemote(remote)) && !sameAttributes(local, remote)) {
+							unhashed.put(remote.getName(), remote);
+							continue;
+						}
+						task = uploadTask(local, directory + "/" + local.getName(), remote, entry != null ? entry.getRemoteMd5() : null, dirIndex, batch);
+					}
+					if (task != null) {
+						executor.execute(task);
 					}
-					executor.execute(task);
 				}
-			} catch (Exception e) {
-				if (!Thread.currentThread().isInterrupted()) {
-					logger.log(Level.SEVERE, "Error traversing uploads: " + directory, e);
+				dirIndex.retainAll(names);
+				hashFiles(conn, directory, unhashed, new DigestListener() {
+					@Override
+					public void digest(String name, String md5) {
+						RemoteFile file = unhashed.remove(name);
+						Runnable task = file != null ? uploadTask(new File(localDirectory, name), directory + "/" + name, file, md5, dirIndex, batch) : null;
+						if (task != null) {
+							executor.execute(task);
+						}
+					}
+				});
+				for (RemoteFile file : unhashed.values()) {
+					Runnable task = uploadTask(new File(localDirectory, file.getName()), directory + "/" + file.getName(), file, null, dirIndex, batch);
+					if (task != null) {
+						executor.execute(task);
+					}
 				}
+				submitBatch(batch, true, localDirectory, directory, dirIndex);
+			} catch (Exception e) {
+				logFailure("Error traversing uploads: " + directory, e);
 			} finally {
-				activeJobs.decrementAndGet();
-				SFTPService.removeTooltip(this);
+				index.release(dirIndex);
+				taskFinished();
+				TrayTooltip.remove(this);
 				if (conn != null) conn.close();
 			}
 		}
@@ -182,13 +352,61 @@ public class DaemonJob implements Runnable {
 		}
 	}
 
-	private class FileUploadRunnable implements Runnable, TooltipLine {
+	private class ChangedFilesRunnable extends ScheduledTask {
+		final File localDirectory;
+		final String directory;
+		final Collection<File> files;
+		ChangedFilesRunnable(File localDirectory, String directory, Collection<File> files) {
+			super(System.currentTimeMillis());
+			this.localDirectory = localDirectory;
+			this.directory = directory;
+			this.files = files;
+			activeJobs.incrementAndGet();
+		}
+
+		@Override
+		public void run() {
+			try {
+				String root = localDirectory.getAbsolutePath();
+				for (File local : files) {
+					String path = local.getAbsolutePath();
+					if (!path.startsWith(root + File.separator) || !local.exists()) {
+						continue;
+					}
+					String remotePath = directory + path.substring(root.length()).replace(File.separatorChar, '/');
+					if (local.isDirectory()) {
+						executor.execute(new UploadTraversalRunnable(local, remotePath));
+					} else {
+						DirectoryIndex dirIndex = index.open(remotePath.substring(0, remotePath.lastIndexOf('/')));
+						try {
+							executor.execute(new FileUploadRunnable(local, remotePath, null, null, dirIndex));
+						} finally {
+							index.release(dirIndex);
+						}
+					}
+				}
+			} finally {
+				taskFinished();
+			}
+		}
+	}
+
+	private class FileUploadRunnable extends ScheduledTask implements TooltipLine {
 		final String path;
 		final File localFile;
+		final RemoteFile listed;
+		final String listedMd5;
+		final DirectoryIndex dirIndex;
 		RemoteFile file;
-		FileUploadRunnable(File localFile, String path) {
+		volatile ProgressMonitor monitor;
+		FileUploadRunnable(File localFile, String path, RemoteFile listed, String listedMd5, DirectoryIndex dirIndex) {
+			super(deadline(path, localFile.length(), localFile.lastModified()));
 			this.localFile = localFile;
 			this.path = path;
+			this.listed = listed;
+			this.listedMd5 = listedMd5;
+			this.dirIndex = dirIndex;
+			index.retain(dirIndex);
 			activeJobs.incrementAndGet();
 		}
 
@@ -196,72 +414,90 @@ public class DaemonJob implements Runnable {
 		public void run() {
 			SFTPConnection conn = null;
 			try {
-				conn = pool.getConnection();
+				conn = pool.getConnection(compressible(localFile));
 				file = conn.getFile(path);
-				String localMd5 = md5(localFile);
-				String remoteMd5 = file == null ? null : file.getMD5();
+				if (sameAttributes(localFile, file)) {
+					return;
+				}
+				//Taken before hashing, a file edited from here on does not match what is indexed
+				long localSize = localFile.length();
+				long localModified = localFile.lastModified();
+				IndexEntry entry = dirIndex.get(localFile.getName());
+				String localMd5 = entry != null && entry.matchesLocal(localFile) ? entry.getLocalMd5() : md5(localFile);
+				String remoteMd5 = remoteMd5(file, listed, listedMd5, entry);
 				if (remoteMd5 == null || !localMd5.equals(remoteMd5)) {
 					if (lockedFiles.add(path)) {
 						try {
 							logger.info("Uploading [" + localFile.getAbsolutePath() + "]. MD5 mismatch. Remote MD5 [" + remoteMd5 + "] Local MD5 [" + localMd5 + "]");
-							if (file != null) {
-								file.remove();
+							RemoteFile part = entry != null && entry.isPartialUpload(localFile) ? conn.getFile(SFTPConnection.partialPath(path)) : null;
+							boolean resume = part != null && part.getSize() < localFile.length() && conn.matchesTail(part.getPath(), localFile, part.getSize());
+							if (resume) {
+								logger.info("Resuming upload of [" + localFile.getAbsolutePath() + "] at byte " + part.getSize());
 							}
-							String dir = path.substring(0, path.lastIndexOf("/"));
-							file = conn.uploadFile(dir, localFile);
-							SFTPService.addTooltip(this);
-							//There has to be a better way to monitor upload tooltips
-							try {
-								int count = 0;
-								float lastProgress = 0;
-								while (true) {
-									try {
-										Thread.sleep(1000);
-									} catch (InterruptedException e) { return; }
-									if (lastProgress == file.getProgress()) {
-										count++;
-										if (count > 5) break;
-									}
-									lastProgress = file.getProgress();
+							if (!resume && file != null && useDelta(localFile, file) && deltaUpload(conn, localFile, path, localMd5)) {
+								conn.setModifiedTime(path, localModified);
+								file = conn.getFile(path);
+							} else {
+								dirIndex.put(IndexEntry.partialUpload(localFile, localSize, localModified, localMd5));
+								if (localSize >= RESUMABLE_SIZE) {
+									//Must outlive the job for the upload to resume after a crash
+									index.save(dirIndex);
+								}
+								String dir = path.substring(0, path.lastIndexOf("/"));
+								monitor = new ProgressMonitor(localFile.length(), resume ? part.getSize() : 0L);
+								TrayTooltip.add(this);
+								try {
+									file = conn.uploadFile(dir, localFile, resume, monitor);
+								} finally {
+									TrayTooltip.remove(this);
 								}
-							} finally {
-								SFTPService.removeTooltip(this);
 							}
+							remoteMd5 = localMd5;
 						} finally {
 							lockedFiles.remove(path);
 						}
+					} else {
+						return;
 					}
 				}
+				dirIndex.put(new IndexEntry(localFile, localSize, localModified, localMd5, file, remoteMd5));
 			} catch (Exception e) {
-				if (!Thread.currentThread().isInterrupted()) {
-					logger.log(Level.SEVERE, "Error uploading file: " + path, e);
-				}
+				logFailure("Error uploading file: " + path, e);
 			}  finally {
-				activeJobs.decrementAndGet();
+				index.release(dirIndex);
+				taskFinished();
 				if (conn != null) conn.close();
 			}
 		}
 
 		@Override
 		public String getTooltip() {
-			if (file != null) {
-				String path = file.getPath();
+			if (monitor != null) {
+				String path = this.path;
 				if (path.length() > 35) {
 					path = "..." + path.substring(path.length() - 30);
 				}
-				return "UP [" + path + "] - " + (int)(file.getProgress() * 10000) / 100F + "%";
+				return "UP [" + path + "] - " + (int)(monitor.getPercent() * 10000) / 100F + "%";
 			}
 			return null;
 		}
 	}
 
-	private class FileDownloadRunnable implements Runnable, TooltipLine {
+	private class FileDownloadRunnable extends ScheduledTask implements TooltipLine {
 		final String path;
 		final File localFile;
+		final RemoteFile listed;
+		final String listedMd5;
+		final DirectoryIndex dirIndex;
 		RemoteFile file;
-		FileDownloadRunnable(File localFile, String path) {
+		FileDownloadRunnable(File localFile, RemoteFile listed, String listedMd5, DirectoryIndex dirIndex) {
+			super(deadline(listed.getPath(), listed.getSize(), listed.getModifiedTime()));
 			this.localFile = localFile;
-			this.path = path;
+			this.path = listed.getPath();
+			this.listed = listed;
+			this.listedMd5 = listedMd5;
+			this.dirIndex = dirIndex;
+			index.retain(dirIndex);
 			activeJobs.incrementAndGet();
 		}
 
@@ -269,41 +505,56 @@ public class DaemonJob implements Runnable {
 		public void run() {
 			SFTPConnection conn = null;
 			try {
-				conn = pool.getConnection();
+				conn = pool.getConnection(Compressibility.isCompressible(path));
 				file = conn.getFile(path);
 				if (file == null) {
 					return; //Moved since we started the task
 				}
-				String localMd5 = md5(localFile);
-				String remoteMd5 = file.getMD5();
+				if (sameAttributes(localFile, file)) {
+					return;
+				}
+				IndexEntry entry = dirIndex.get(file.getName());
+				String remoteMd5 = remoteMd5(file, listed, listedMd5, entry);
+				String localMd5 = entry != null && entry.matchesLocal(localFile) ? entry.getLocalMd5() : md5(localFile);
 				if (localMd5 == null || !localMd5.equals(remoteMd5)) {
-					FileOutputStream fos = null;
-					InputStream stream = null;
 					if (lockedFiles.add(path)) {
 						logger.info("Downloading [" + file.getPath() + "]. MD5 mismatch. Remote MD5 [" + remoteMd5 + "] Local MD5 [" + localMd5 + "]");
-						SFTPService.addTooltip(this);
+						TrayTooltip.add(this);
 						try {
 							localFile.getParentFile().mkdirs();
-							fos = new FileOutputStream(localFile);
-							stream = file.openStream();
-							ReadableByteChannel rbc = Channels.newChannel(stream);
-							fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
+							PartialDownload part = new PartialDownload(localFile, file);
+							long offset = part.resume();
+							if (offset > 0) {
+								logger.info("Resuming download of [" + file.getPath() + "] at byte " + offset);
+							}
+							long threshold = server.settings().getSegmentThreshold() * 1024L * 1024L;
+							if (offset > 0 || !useDelta(localFile, file) || !deltaDownload(conn, file, localFile, remoteMd5)) {
+								if (threshold > 0 && file.getSize() - offset >= threshold && server.settings().getSegments() > 1) {
+									part.downloadSegmented(pool, server.settings().getSegments(), executor, offset);
+								} else {
+									part.download(offset);
+								}
+								part.complete();
+							}
+							localFile.setLastModified(file.getModifiedTime());
+							localMd5 = remoteMd5;
 						} catch (IOException e) {
+							localMd5 = null;
 							logger.log(Level.SEVERE, "Unable to copy remote file [" + file.getPath() + "] to [" + localFile.getAbsolutePath() + "]", e);
 						} finally {
-							IOUtils.closeQuietly(fos);
-							IOUtils.closeQuietly(stream);
-							SFTPService.removeTooltip(this);
+							TrayTooltip.remove(this);
 							lockedFiles.remove(path);
 						}
+					} else {
+						return;
 					}
 				}
+				dirIndex.put(new IndexEntry(localFile, localMd5, file, remoteMd5));
 			} catch (Exception e) {
-				if (!Thread.currentThread().isInterrupted()) {
-					logger.log(Level.SEVERE, "Error downloading file: " + path, e);
-				}
+				logFailure("Error downloading file: " + path, e);
 			}  finally {
-				activeJobs.decrementAndGet();
+				index.release(dirIndex);
+				taskFinished();
 				if (conn != null) conn.close();
 			}
 		}
@@ -321,7 +572,354 @@ public class DaemonJob implements Runnable {
 		}
 	}
 
-	private static String md5(File file) {
+	/**
+	 * A small file waiting to be transferred with the rest of its directory.
+	 */
+	private static class BatchItem {
+		final File local;
+		final String path;
+		final RemoteFile remote;
+		final String md5;
+		long size;
+		long modified;
+		BatchItem(File local, String path, RemoteFile remote, String md5) {
+			this.local = local;
+			this.path = path;
+			this.remote = remote;
+			this.md5 = md5;
+		}
+
+		/**
+		 * Notes the local size and modification time, before the file is hashed or read.
+		 */
+		void record() {
+			size = local.length();
+			modified = local.lastModified();
+		}
+
+		boolean isUnchanged() {
+			return local.length() == size && local.lastModified() == modified;
+		}
+	}
+
+	/**
+	 * Sends many small files of one directory as a single tar stream. Files whose checksums already match
+	 * are only indexed, and any file the batch could not transfer falls back to its own task.
+	 */
+	private class BatchRunnable extends ScheduledTask implements TooltipLine {
+		final boolean upload;
+		final File localDirectory;
+		final String directory;
+		final List<BatchItem> items;
+		final DirectoryIndex dirIndex;
+		final Map<String, BatchItem> pending = new LinkedHashMap<String, BatchItem>();
+		volatile String current;
+		volatile ProgressMonitor monitor;
+		BatchRunnable(boolean upload, File localDirectory, String directory, List<BatchItem> items, DirectoryIndex dirIndex) {
+			super(deadline(items, upload));
+			this.upload = upload;
+			this.localDirectory = localDirectory;
+			this.directory = directory;
+			this.items = items;
+			this.dirIndex = dirIndex;
+			index.retain(dirIndex);
+			activeJobs.incrementAndGet();
+		}
+
+		@Override
+		public void run() {
+			SFTPConnection conn = null;
+			try {
+				for (BatchItem item : items) {
+					item.record();
+					IndexEntry entry = dirIndex.get(item.local.getName());
+					String localMd5 = entry != null && entry.matchesLocal(item.local) ? entry.getLocalMd5() : md5(item.local);
+					String remoteMd5 = item.md5;
+					if (remoteMd5 == null && item.remote != null && entry != null && entry.matchesRemote(item.remote)) {
+						remoteMd5 = entry.getRemoteMd5();
+					}
+					if (remoteMd5 != null && remoteMd5.equals(localMd5)) {
+						dirIndex.put(new IndexEntry(item.local, item.size, item.modified, localMd5, item.remote, remoteMd5));
+					} else if (lockedFiles.add(item.path)) {
+						pending.put(item.local.getName(), item);
+					}
+				}
+				if (pending.isEmpty()) {
+					return;
+				}
+				conn = pool.getConnection(mostlyCompressible());
+				TrayTooltip.add(this);
+				logger.info((upload ? "Uploading " : "Downloading ") + pending.size() + " files of [" + directory + "] as one batch");
+				if (upload) {
+					upload(conn);
+				} else {
+					download(conn);
+				}
+			} catch (TarTransfer.UnavailableException e) {
+				batching = false;
+				logger.warning("Batch transfers to [" + server.getAlias() + "] are not possible, transferring files one by one: " + e.getMessage());
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Batch transfer in [" + directory + "] failed, transferring its files one by one", e);
+			} catch (Exception e) {
+				logFailure("Error in batch transfer: " + directory, e);
+			} finally {
+				TrayTooltip.remove(this);
+				for (BatchItem item : pending.values()) {
+					lockedFiles.remove(item.path);
+					if (!shutdown.get()) {
+						executor.execute(upload ? new FileUploadRunnable(item.local, item.path, item.remote, item.md5, dirIndex) : new FileDownloadRunnable(item.local, item.remote, item.md5, dirIndex));
+					}
+				}
+				index.release(dirIndex);
+				taskFinished();
+				if (conn != null) conn.close();
+			}
+		}
+
+		/**
+		 * True if most of the pending bytes look compressible.
+		 */
+		private boolean mostlyCompressible() {
+			long total = 0L;
+			long compressible = 0L;
+			for (BatchItem item : pending.values()) {
+				long size = upload ? item.local.length() : item.remote.getSize();
+				total += size;
+				if (upload ? compressible(item.local) : Compressibility.isCompressible(item.path)) {
+					compressible += size;
+				}
+			}
+			return compressible * 2 >= total;
+		}
+
+		private void download(SFTPConnection conn) throws IOException {
+			List<RemoteFile> files = new ArrayList<RemoteFile>();
+			for (BatchItem item : pending.values()) {
+				files.add(item.remote);
+			}
+			new TarTransfer(conn).download(directory, files, localDirectory, new TarTransfer.Listener() {
+				@Override
+				public void started(String name, ProgressMonitor monitor) {
+					current = name;
+					BatchRunnable.this.monitor = monitor;
+				}
+
+				@Override
+				public void finished(String name, String md5) {
+					BatchItem item = pending.remove(name);
+					if (item != null) {
+						lockedFiles.remove(item.path);
+						//Only index what was listed, a file that changed since is checked again next time
+						if (item.local.length() == item.remote.getSize() && item.local.lastModified() / 1000L == item.remote.getModifiedTime() / 1000L) {
+							dirIndex.put(new IndexEntry(item.local, md5, item.remote, md5));
+						}
+					}
+				}
+			});
+		}
+
+		private void upload(SFTPConnection conn) throws IOException {
+			List<File> files = new ArrayList<File>();
+			for (BatchItem item : pending.values()) {
+				item.record();
+				files.add(item.local);
+			}
+			final Map<String, String> sent = new HashMap<String, String>();
+			new TarTransfer(conn).upload(directory, files, new TarTransfer.Listener() {
+				@Override
+				public void started(String name, ProgressMonitor monitor) {
+					current = name;
+					BatchRunnable.this.monitor = monitor;
+				}
+
+				@Override
+				public void finished(String name, String md5) {
+					sent.put(name, md5);
+				}
+			});
+			Map<String, RemoteFile> remoteFiles = new HashMap<String, RemoteFile>();
+			for (RemoteFile file : conn.listFiles(directory)) {
+				remoteFiles.put(file.getName(), file);
+			}
+			for (Map.Entry<String, String> e : sent.entrySet()) {
+				BatchItem item = pending.remove(e.getKey());
+				lockedFiles.remove(item.path);
+				RemoteFile remote = remoteFiles.get(e.getKey());
+				//A file changed since it was read is sent again next time
+				if (remote != null && item.isUnchanged()) {
+					dirIndex.put(new IndexEntry(item.local, item.size, item.modified, e.getValue(), remote, e.getValue()));
+				}
+			}
+		}
+
+		@Override
+		public String getTooltip() {
+			String name = current;
+			ProgressMonitor monitor = this.monitor;
+			if (name != null && monitor != null) {
+				String path = directory + "/" + name;
+				if (path.length() > 35) {
+					path = "..." + path.substring(path.length() - 30);
+				}
+				return (upload ? "UP [" : "DL [") + path + "] - " + (int)(monitor.getPercent() * 10000) / 100F + "%";
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Samples the file only when the server picks compression per file.
+	 */
+	private boolean compressible(File local) {
+		return server.settings().getCompression() == CompressionMode.AUTO && Compressibility.isCompressible(local);
+	}
+
+	private boolean batched(long size) {
+		return batching && size < server.settings().getBatchThreshold() * 1024L;
+	}
+
+	/**
+	 * Returns the task downloading the file, or null if it was added to the directory's batch instead.
+	 */
+	private Runnable downloadTask(File local, RemoteFile file, String md5, DirectoryIndex dirIndex, List<BatchItem> batch) {
+		if (batched(file.getSize())) {
+			batch.add(new BatchItem(local, file.getPath(), file, md5));
+			return null;
+		}
+		return new FileDownloadRunnable(local, file, md5, dirIndex);
+	}
+
+	/**
+	 * Returns the task uploading the file, or null if it was added to the directory's batch instead.
+	 */
+	private Runnable uploadTask(File local, String path, RemoteFile remote, String md5, DirectoryIndex dirIndex, List<BatchItem> batch) {
+		if (batched(local.length())) {
+			batch.add(new BatchItem(local, path, remote, md5));
+			return null;
+		}
+		return new FileUploadRunnable(local, path, remote, md5, dirIndex);
+	}
+
+	/**
+	 * Queues the directory's batched files, as single file tasks when there are too few to be worth a batch.
+	 */
+	private void submitBatch(List<BatchItem> batch, boolean upload, File localDirectory, String directory, DirectoryIndex dirIndex) {
+		if (batch.size() < BATCH_MIN_FILES) {
+			for (BatchItem item : batch) {
+				executor.execute(upload ? new FileUploadRunnable(item.local, item.path, item.remote, item.md5, dirIndex) : new FileDownloadRunnable(item.local, item.remote, item.md5, dirIndex));
+			}
+			return;
+		}
+		for (int i = 0; i < batch.size(); i += BATCH_MAX_FILES) {
+			List<BatchItem> items = new ArrayList<BatchItem>(batch.subList(i, Math.min(batch.size(), i + BATCH_MAX_FILES)));
+			executor.execute(new BatchRunnable(upload, localDirectory, directory, items, dirIndex));
+		}
+	}
+
+	private long deadline(List<BatchItem> items, boolean upload) {
+		long deadline = Long.MAX_VALUE;
+		for (BatchItem item : items) {
+			if (upload) {
+				deadline = Math.min(deadline, deadline(item.path, item.local.length(), item.local.lastModified()));
+			} else {
+				deadline = Math.min(deadline, deadline(item.path, item.remote.getSize(), item.remote.getModifiedTime()));
+			}
+		}
+		return deadline;
+	}
+
+	/**
+	 * When a file transfer should run at the latest, according to the server's schedule policy. Hot paths
+	 * go ahead of anything queued in the last few minutes.
+	 */
+	private long deadline(String path, long size, long modified) {
+		long now = System.currentTimeMillis();
+		long deadline = now + server.settings().getSchedulePolicy().delay(size, modified, now);
+		String root = server.getRemoteDir().endsWith("/") ? server.getRemoteDir() : server.getRemoteDir() + "/";
+		if (!hotPaths.isEmpty() && path.startsWith(root)) {
+			Path relative = Paths.get(path.substring(root.length()));
+			for (PathMatcher matcher : hotPaths) {
+				if (matcher.matches(relative)) {
+					return deadline - HOT_PATH_LEAD;
+				}
+			}
+		}
+		return deadline;
+	}
+
+	/**
+	 * True if the server compares by size and modification time and both agree. Remote times only
+	 * have second precision.
+	 */
+	private boolean sameAttributes(File local, RemoteFile remote) {
+		return server.settings().getCompareMode() == CompareMode.SIZE_MTIME && remote != null && local.exists()
+				&& local.length() == remote.getSize() && local.lastModified() / 1000L == remote.getModifiedTime() / 1000L;
+	}
+
+	private static void logFailure(String message, Exception e) {
+		if (Thread.currentThread().isInterrupted()) {
+			return;
+		}
+		if (e instanceof SFTPOfflineException) {
+			//Logged once by the circuit breaker, every queued task fails the same way
+			logger.fine(message + ": " + e.getMessage());
+		} else {
+			logger.log(Level.SEVERE, message, e);
+		}
+	}
+
+	private boolean useDelta(File local, RemoteFile remote) {
+		long threshold = server.settings().getDeltaThreshold() * 1024L * 1024L;
+		return threshold > 0 && local.isFile() && local.length() >= threshold && remote.getSize() >= threshold;
+	}
+
+	private static boolean deltaDownload(SFTPConnection conn, RemoteFile file, File localFile, String remoteMd5) {
+		try {
+			return new DeltaTransfer(conn, file.getSize()).download(file, localFile, remoteMd5);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Delta download of [" + file.getPath() + "] failed, downloading the whole file", e);
+			return false;
+		}
+	}
+
+	private static boolean deltaUpload(SFTPConnection conn, File localFile, String path, String localMd5) {
+		try {
+			return new DeltaTransfer(conn, localFile.length()).upload(localFile, path, localMd5);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Delta upload of [" + path + "] failed, uploading the whole file", e);
+			return false;
+		}
+	}
+
+	private void hashFiles(SFTPConnection conn, String directory, Map<String, RemoteFile> files, DigestListener listener) {
+		if (files.isEmpty()) {
+			return;
+		}
+		try {
+			conn.hashFiles(directory, new ArrayList<RemoteFile>(files.values()), listener);
+		} catch (SFTPException e) {
+			logger.log(Level.WARNING, "Unable to hash directory [" + directory + "], falling back to hashing each file", e);
+		}
+	}
+
+	/**
+	 * Returns the remote MD5 for a file, preferring a digest computed from the directory listing or
+	 * the index as long as the file has not changed since, and hashing it remotely otherwise.
+	 */
+	private static String remoteMd5(RemoteFile file, RemoteFile listed, String listedMd5, IndexEntry entry) {
+		if (file == null) {
+			return null;
+		}
+		if (listedMd5 != null && listed != null && listed.getSize() == file.getSize() && listed.getModifiedTime() == file.getModifiedTime()) {
+			return listedMd5;
+		}
+		if (entry != null && entry.matchesRemote(file)) {
+			return entry.getRemoteMd5();
+		}
+		return file.getMD5();
+	}
+
+	static String md5(File file) {
 		if (!file.exists()) {
 			return null;
 		}
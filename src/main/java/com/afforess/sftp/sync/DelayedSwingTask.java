@@ -2,7 +2,7 @@ package com.afforess.sftp.sync;
 
 import javax.swing.SwingUtilities;
 
-public class DelayedSwingTask extends Thread{
+public final class DelayedSwingTask extends Thread{
 	private final Runnable run;
 	private final long delay;
 	public DelayedSwingTask(Runnable run, long delay) {
@@ -0,0 +1,188 @@
+package com.afforess.sftp.sync;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a local directory tree and collects the paths that changed, handing them out in
+ * batches once events have been quiet for a short while.
+ */
+public final class LocalWatcher extends Thread {
+	private static final Logger logger = Logger.getLogger("sftp-sync");
+	private static final long QUIET_PERIOD = 2000L;
+	private static final long MAX_DELAY = 30 * 1000L;
+	private final Path root;
+	private final Runnable listener;
+	private final WatchService watcher;
+	private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	private final Set<Path> pending = new HashSet<Path>();
+	private long firstEvent = 0L;
+	private long lastEvent = 0L;
+	private boolean overflow = false;
+	/**
+	 * @param listener run when changes start to pile up or events were lost
+	 */
+	public LocalWatcher(File root, Runnable listener) throws IOException {
+		super("Local Watcher [" + root.getName() + "]");
+		this.root = root.toPath();
+		this.listener = listener;
+		this.watcher = FileSystems.getDefault().newWatchService();
+		setDaemon(true);
+		register(this.root);
+	}
+
+	public void close() {
+		try {
+			watcher.close();
+		} catch (IOException ignore) { }
+		this.interrupt();
+	}
+
+	/**
+	 * Returns true once if events were lost since the last call, in which case a full scan is needed.
+	 */
+	public synchronized boolean isOverflowed() {
+		boolean result = overflow;
+		overflow = false;
+		return result;
+	}
+
+	public synchronized void clear() {
+		pending.clear();
+	}
+
+	/**
+	 * Returns the time at which poll() will hand out the pending changes, if no further event arrives.
+	 */
+	public synchronized long getReadyTime() {
+		if (pending.isEmpty()) {
+			return Long.MAX_VALUE;
+		}
+		return Math.min(lastEvent + QUIET_PERIOD, firstEvent + MAX_DELAY);
+	}
+
+	/**
+	 * Returns the changed paths once no event arrived for the quiet period (or events kept arriving
+	 * for too long), with paths inside an already changed directory removed. Returns an empty list otherwise.
+	 */
+	public synchronized List<File> poll() {
+		long now = System.currentTimeMillis();
+		if (pending.isEmpty() || (now - lastEvent < QUIET_PERIOD && now - firstEvent < MAX_DELAY)) {
+			return Collections.emptyList();
+		}
+		List<File> changed = new ArrayList<File>();
+		for (Path path : pending) {
+			if (!hasPendingParent(path)) {
+				changed.add(path.toFile());
+			}
+		}
+		pending.clear();
+		return changed;
+	}
+
+	private boolean hasPendingParent(Path path) {
+		for (Path parent = path.getParent(); parent != null && parent.startsWith(root); parent = parent.getParent()) {
+			if (pending.contains(parent) && Files.isDirectory(parent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!isInterrupted()) {
+				WatchKey key = watcher.take();
+				Path dir = keys.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						synchronized(this) {
+							overflow = true;
+						}
+						listener.run();
+						continue;
+					}
+					if (dir == null) {
+						continue;
+					}
+					Path path = dir.resolve((Path) event.context());
+					if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+						try {
+							register(path);
+						} catch (IOException e) {
+							//Gone or unreadable already, the next full scan covers whatever it held
+							logger.log(Level.WARNING, "Unable to watch new directory [" + path + "]", e);
+						}
+					}
+					changed(path);
+				}
+				if (!key.reset()) {
+					keys.remove(key);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ignore) {
+		}
+	}
+
+	private void changed(Path path) {
+		boolean first;
+		synchronized(this) {
+			long now = System.currentTimeMillis();
+			first = pending.isEmpty();
+			if (first) {
+				firstEvent = now;
+			}
+			lastEvent = now;
+			pending.add(path);
+		}
+		//Later events only push the ready time back, which the listener finds out when it polls
+		if (first) {
+			listener.run();
+		}
+	}
+
+	private void register(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				keys.put(dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+				//Deleted while being walked
+				if (e instanceof NoSuchFileException) {
+					return FileVisitResult.CONTINUE;
+				}
+				throw e;
+			}
+		});
+	}
+}
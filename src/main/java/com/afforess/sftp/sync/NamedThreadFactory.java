@@ -9,13 +9,23 @@ import java.util.logging.Logger;
 public class NamedThreadFactory implements ThreadFactory {
 	private final AtomicInteger count = new AtomicInteger(0);
 	private final String name;
+	private final boolean virtual;
 	public NamedThreadFactory(String name) {
+		this(name, false);
+	}
+
+	public NamedThreadFactory(String name, boolean virtual) {
 		this.name = name;
+		this.virtual = virtual;
 	}
 
 	@Override
 	public Thread newThread(Runnable r) {
-		Thread thread = new Thread(r, name.replaceAll("%1", String.valueOf(count.getAndIncrement())));
+		String threadName = name.replaceAll("%1", String.valueOf(count.getAndIncrement()));
+		if (virtual) {
+			return Thread.ofVirtual().name(threadName).uncaughtExceptionHandler(new ExceptionLogger()).unstarted(r);
+		}
+		Thread thread = new Thread(r, threadName);
 		thread.setUncaughtExceptionHandler(new ExceptionLogger());
 		return thread;
 	}
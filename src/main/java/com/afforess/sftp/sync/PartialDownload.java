@@ -0,0 +1,149 @@
+package com.afforess.sftp.sync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.io.IOUtils;
+
+import com.afforess.sftp.sync.connection.DeltaTransfer;
+import com.afforess.sftp.sync.connection.RemoteFile;
+import com.afforess.sftp.sync.connection.SFTPConnection;
+import com.afforess.sftp.sync.connection.SSHPool;
+import com.afforess.sftp.sync.connection.SegmentedDownload;
+
+/**
+ * Download into a hidden partial file next to the target, with a small metadata file recording the
+ * remote size and modification time it belongs to and the offset up to which its content has been
+ * forced to disk. An interrupted download resumes from that offset as long as the remote file is unchanged.
+ */
+class PartialDownload {
+	static final String SUFFIX = SFTPConnection.PARTIAL_SUFFIX;
+	private static final long CHECKPOINT_BYTES = 64 * 1024 * 1024L;
+	private final File target;
+	private final RemoteFile remote;
+	private final File part;
+	private final File meta;
+	PartialDownload(File target, RemoteFile remote) {
+		this.target = target;
+		this.remote = remote;
+		this.part = new File(target.getParentFile(), "." + target.getName() + SUFFIX);
+		this.meta = new File(target.getParentFile(), "." + target.getName() + SUFFIX + ".meta");
+	}
+
+	static boolean isPartial(String name) {
+		return name.endsWith(SUFFIX) || name.endsWith(SUFFIX + ".meta") || DeltaTransfer.isTemporary(name);
+	}
+
+	/**
+	 * Returns the offset to continue the download from, discarding any partial content that
+	 * does not belong to the current remote file.
+	 */
+	long resume() throws IOException {
+		long offset = readCheckpoint();
+		if (offset > 0 && part.length() >= offset) {
+			RandomAccessFile raf = new RandomAccessFile(part, "rw");
+			try {
+				raf.setLength(offset);
+			} finally {
+				raf.close();
+			}
+			return offset;
+		}
+		part.delete();
+		meta.delete();
+		return 0L;
+	}
+
+	void download(long offset) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(part, "rw");
+		InputStream in = null;
+		try {
+			FileChannel out = raf.getChannel();
+			in = remote.openStream(offset);
+			byte[] buffer = new byte[64 * 1024];
+			long position = offset;
+			long checkpoint = offset + CHECKPOINT_BYTES;
+			try {
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+					while (chunk.hasRemaining()) {
+						position += out.write(chunk, position);
+					}
+					if (position >= checkpoint) {
+						checkpoint(out, position);
+						checkpoint = position + CHECKPOINT_BYTES;
+					}
+					if (Thread.currentThread().isInterrupted()) {
+						throw new IOException("Interrupted while downloading [" + remote.getPath() + "]");
+					}
+				}
+			} finally {
+				checkpoint(out, position);
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(raf);
+		}
+	}
+
+	void downloadSegmented(SSHPool pool, int segments, Executor executor, long offset) throws IOException {
+		SegmentedDownload download = new SegmentedDownload(pool, remote, part, offset, segments, executor);
+		try {
+			download.run();
+		} finally {
+			writeCheckpoint(download.getVerifiedOffset());
+		}
+	}
+
+	void complete() throws IOException {
+		if (part.length() != remote.getSize()) {
+			throw new IOException("Downloaded " + part.length() + " of " + remote.getSize() + " bytes of [" + remote.getPath() + "]");
+		}
+		SFTPConnection.replaceLocal(part, target);
+		meta.delete();
+	}
+
+	private void checkpoint(FileChannel channel, long offset) throws IOException {
+		channel.force(false);
+		writeCheckpoint(offset);
+	}
+
+	private void writeCheckpoint(long offset) throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(meta));
+		try {
+			out.writeLong(remote.getSize());
+			out.writeLong(remote.getModifiedTime());
+			out.writeLong(offset);
+		} finally {
+			out.close();
+		}
+	}
+
+	private long readCheckpoint() {
+		if (!meta.exists()) {
+			return 0L;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(meta));
+			if (in.readLong() != remote.getSize() || in.readLong() != remote.getModifiedTime()) {
+				return 0L;
+			}
+			return in.readLong();
+		} catch (IOException e) {
+			return 0L;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+}
@@ -38,6 +38,8 @@ import java.util.logging.StreamHandler;
 import javax.imageio.ImageIO;
 import javax.swing.UIManager;
 
+import com.afforess.sftp.sync.connection.BandwidthLimiter;
+import com.afforess.sftp.sync.connection.CipherBenchmark;
 import com.afforess.sftp.sync.yml.YAMLProcessor;
 
 public class SFTPService {
@@ -56,12 +58,17 @@ public class SFTPService {
 	private static final List<ServerEntry> servers = new ArrayList<ServerEntry>();
 	private static final List<ServerDaemon> daemons = new ArrayList<ServerDaemon>();
 	private static final AtomicLong pausedTime = new AtomicLong(-1L);
+	private static final long[] BANDWIDTH_PRESETS = {0L, 128 * 1024L, 256 * 1024L, 512 * 1024L, 1024 * 1024L, 4 * 1024 * 1024L};
 	private static final PopupMenu popup = new PopupMenu();
 	private static TrayIcon trayIcon;
 	public static void main(String[] args) {
 		Logger logger = setupLogger();
 		try {
-			safeMain(logger);
+			if (args.length > 0 && args[0].equals("benchmark-ciphers")) {
+				benchmarkCiphers(args.length > 1 ? args[1] : null);
+			} else {
+				safeMain(logger);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -92,19 +99,7 @@ public class SFTPService {
 					setupTray();
 				}
 				builder.delete(0, builder.length());
-				synchronized(SFTPService.class) {
-					boolean first = true;
-					for (TooltipLine line : lines) {
-						String text = line.getTooltip();
-						if (text != null) {
-							if (!first) {
-								builder.append('\n');
-							}
-							first = false;
-							builder.append(text);
-						}
-					}
-				}
+				TrayTooltip.append(builder);
 				if (builder.length() == 0 && pausedTime.get() != -1) {
 					builder.append("SFTP Sync");
 					setTrayIcon(PAUSED_IMAGE);
@@ -146,15 +141,6 @@ public class SFTPService {
 		setupTray();
 	}
 
-	private static List<TooltipLine> lines = new ArrayList<TooltipLine>();
-	public static synchronized void addTooltip(TooltipLine line) {
-		lines.add(line);
-	}
-
-	public static synchronized void removeTooltip(TooltipLine line) {
-		lines.remove(line);
-	}
-
 	private static synchronized void addDaemon(ServerEntry entry) {
 		ThreadFactory factory = new NamedThreadFactory("Server [" + entry.getAlias() + "] Daemon - %1");
 		ServerDaemon daemon = new ServerDaemon(entry, factory);
@@ -221,6 +207,9 @@ public class SFTPService {
 			popup.add(pauseMenu);
 		}
 
+		popup.add(bandwidthMenu("Upload Limit", BandwidthLimiter.UPLOAD));
+		popup.add(bandwidthMenu("Download Limit", BandwidthLimiter.DOWNLOAD));
+
 		Menu serverList = new Menu("Server List");
 		MenuItem addServer = new MenuItem("Add Server");
 		addServer.addActionListener(new ServerEntryListener());
@@ -248,6 +237,41 @@ public class SFTPService {
 		popup.add(exit);
 	}
 
+	private static Menu bandwidthMenu(String title, BandwidthLimiter limiter) {
+		Menu menu = new Menu(title + " (" + formatRate(limiter.getRate()) + ")");
+		for (long rate : BANDWIDTH_PRESETS) {
+			MenuItem item = new MenuItem(formatRate(rate));
+			item.addActionListener(new BandwidthActionListener(limiter, rate));
+			menu.add(item);
+		}
+		return menu;
+	}
+
+	private static String formatRate(long rate) {
+		if (rate <= 0L) {
+			return "Unlimited";
+		} else if (rate % (1024 * 1024L) == 0) {
+			return rate / (1024 * 1024L) + " MB/s";
+		}
+		return rate / 1024L + " KB/s";
+	}
+
+	private static class BandwidthActionListener implements ActionListener {
+		final BandwidthLimiter limiter;
+		final long rate;
+		BandwidthActionListener(BandwidthLimiter limiter, long rate) {
+			this.limiter = limiter;
+			this.rate = rate;
+		}
+
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			limiter.setRate(rate);
+			saveServers();
+			setupTray();
+		}
+	}
+
 	private static class PauseActionListener implements ActionListener {
 		final long time;
 		PauseActionListener(long time) {
@@ -290,6 +314,8 @@ public class SFTPService {
 				serverAliases.add(entry.getAlias());
 			}
 			yml.setProperty("servers", serverAliases);
+			yml.setProperty("bandwidth.upload", BandwidthLimiter.UPLOAD.getRate() / 1024L);
+			yml.setProperty("bandwidth.download", BandwidthLimiter.DOWNLOAD.getRate() / 1024L);
 			for (ServerEntry entry : servers) {
 				final String alias = entry.getAlias();
 				yml.setProperty("server." + alias + ".host", entry.getServerHostname());
@@ -300,18 +326,48 @@ public class SFTPService {
 				yml.setProperty("server." + alias + ".local", entry.getLocalDir());
 				yml.setProperty("server." + alias + ".sync", entry.getSyncMode());
 				yml.setProperty("server." + alias + ".cooldown", entry.getRecheckMinutes());
+				entry.settings().save(yml, "server." + alias);
 			}
 			
 			yml.save();
 		}
 	}
 
+	/**
+	 * Prints the cipher benchmark to the console, against the server with the alias if one is given.
+	 */
+	private static void benchmarkCiphers(String alias) {
+		readServers();
+		ServerEntry server = null;
+		for (ServerEntry entry : servers) {
+			if (entry.getAlias().equals(alias)) {
+				server = entry;
+			}
+		}
+		if (alias != null && server == null) {
+			System.out.println("No server named [" + alias + "] in servers.yml");
+			return;
+		}
+		new CipherBenchmark(server).run(System.out);
+	}
+
 	private static void loadServers() {
+		synchronized(servers) {
+			readServers();
+			for (ServerEntry entry : servers) {
+				addDaemon(entry);
+			}
+		}
+	}
+
+	private static void readServers() {
 		synchronized(servers) {
 			File serverList = new File(getWorkingDirectory("sftp-sync"), "servers.yml");
 			YAMLProcessor yml = new YAMLProcessor(serverList, false);
 			try {
 				yml.load();
+				BandwidthLimiter.UPLOAD.setRate(yml.getInt("bandwidth.upload", 0) * 1024L);
+				BandwidthLimiter.DOWNLOAD.setRate(yml.getInt("bandwidth.download", 0) * 1024L);
 				List<String> aliases = yml.getStringList("servers", Collections.<String>emptyList());
 				for (String alias : aliases) {
 					ServerEntry server = new ServerEntry();
@@ -328,14 +384,12 @@ public class SFTPService {
 						server.setSyncMode(yml.getInt("server." + alias + ".sync", 0));
 					}
 					server.setRecheckMinutes(yml.getInt("server." + alias + ".cooldown"));
+					server.settings().load(yml, "server." + alias);
 					servers.add(server);
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-			for (ServerEntry entry : servers) {
-				addDaemon(entry);
-			}
 		}
 	}
 
@@ -379,63 +433,7 @@ public class SFTPService {
 	}
 
 	public static File getWorkingDirectory(String applicationName) {
-		String userHome = System.getProperty("user.home", ".");
-		File workingDirectory;
-
-		switch (getOS()) {
-			case LINUX:
-			case SOLARIS:
-				workingDirectory = new File(userHome, '.' + applicationName + '/');
-				break;
-			case WINDOWS:
-				String applicationData = System.getenv("APPDATA");
-				if (applicationData != null) {
-					workingDirectory = new File(applicationData, "." + applicationName + '/');
-				} else {
-					workingDirectory = new File(userHome, '.' + applicationName + '/');
-				}
-				break;
-			case MAC_OS:
-				workingDirectory = new File(userHome, "Library/Application Support/" + applicationName);
-				break;
-			default:
-				workingDirectory = new File(userHome, applicationName + '/');
-		}
-		if ((!workingDirectory.exists()) && (!workingDirectory.mkdirs())) {
-			throw new RuntimeException("The working directory could not be created: " + workingDirectory);
-		}
-		return workingDirectory;
-	}
-
-	private static OS getOS() {
-		String osName = System.getProperty("os.name").toLowerCase();
-		if (osName.contains("win")) {
-			return OS.WINDOWS;
-		}
-		if (osName.contains("mac")) {
-			return OS.MAC_OS;
-		}
-		if (osName.contains("solaris")) {
-			return OS.SOLARIS;
-		}
-		if (osName.contains("sunos")) {
-			return OS.SOLARIS;
-		}
-		if (osName.contains("linux")) {
-			return OS.LINUX;
-		}
-		if (osName.contains("unix")) {
-			return OS.LINUX;
-		}
-		return OS.UNKNOWN;
-	}
-
-	private enum OS {
-		LINUX,
-		SOLARIS,
-		WINDOWS,
-		MAC_OS,
-		UNKNOWN;
+		return WorkingDirectory.get(applicationName);
 	}
 }
 
@@ -0,0 +1,56 @@
+package com.afforess.sftp.sync;
+
+/**
+ * Orders queued file transfers. Each policy picks how long a file may wait behind files queued after it;
+ * once that delay has passed it goes ahead of newer work, so large or old files are never starved.
+ */
+public enum SchedulePolicy {
+	/**
+	 * Smallest files first, 100 ms of delay per MB up to a minute.
+	 */
+	SIZE("size") {
+		@Override
+		long delay(long size, long modified, long now) {
+			return Math.min(MAX_DELAY, size / (10 * 1024L));
+		}
+	},
+	/**
+	 * Most recently modified files first, a day old file waits up to a minute.
+	 */
+	MTIME("mtime") {
+		@Override
+		long delay(long size, long modified, long now) {
+			return Math.min(MAX_DELAY, Math.max(0L, now - modified) / 1440L);
+		}
+	},
+	/**
+	 * Files in the order they were found.
+	 */
+	FIFO("fifo") {
+		@Override
+		long delay(long size, long modified, long now) {
+			return 0L;
+		}
+	};
+
+	private static final long MAX_DELAY = 60 * 1000L;
+	final String name;
+	SchedulePolicy(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	abstract long delay(long size, long modified, long now);
+
+	public static SchedulePolicy getPolicyByName(String name) {
+		for (SchedulePolicy p : values()) {
+			if (p.getName().equalsIgnoreCase(name)) {
+				return p;
+			}
+		}
+		return SIZE;
+	}
+}
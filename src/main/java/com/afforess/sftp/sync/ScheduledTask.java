@@ -0,0 +1,31 @@
+package com.afforess.sftp.sync;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Task that executors run in order of deadline instead of submission. Tasks that are not scheduled, such
+ * as the helpers of a download already under way, go before all scheduled ones.
+ */
+abstract class ScheduledTask implements Runnable {
+	static final Comparator<Runnable> ORDER = new Comparator<Runnable>() {
+		@Override
+		public int compare(Runnable a, Runnable b) {
+			if (!(a instanceof ScheduledTask) || !(b instanceof ScheduledTask)) {
+				return Boolean.compare(a instanceof ScheduledTask, b instanceof ScheduledTask);
+			}
+			ScheduledTask x = (ScheduledTask) a;
+			ScheduledTask y = (ScheduledTask) b;
+			if (x.deadline != y.deadline) {
+				return x.deadline < y.deadline ? -1 : 1;
+			}
+			return Long.compare(x.sequence, y.sequence);
+		}
+	};
+	private static final AtomicLong counter = new AtomicLong(0L);
+	private final long deadline;
+	private final long sequence = counter.getAndIncrement();
+	ScheduledTask(long deadline) {
+		this.deadline = deadline;
+	}
+}
@@ -1,19 +1,38 @@
 package com.afforess.sftp.sync;
 
-import java.util.concurrent.Executors;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.afforess.sftp.sync.connection.CircuitBreaker;
+import com.afforess.sftp.sync.connection.ConcurrencyController;
 
 public class ServerDaemon extends Thread {
+	private static final Logger logger = Logger.getLogger("sftp-sync");
 	private final ServerEntry server;
 	private final ThreadFactory factory;
 	private volatile DaemonJob job = null;
+	private LocalWatcher watcher = null;
 	private final AtomicLong paused = new AtomicLong(-1L);
 	private final AtomicLong nextUpdate = new AtomicLong(0L);
+	private final CircuitBreaker breaker;
+	private final ConcurrencyController controller;
+	private final Object wakeLock = new Object();
+	private boolean woken = false;
 	public ServerDaemon(ServerEntry server, ThreadFactory factory) {
 		super("Server [" + server.getAlias() + "] Daemon");
 		this.server = server;
 		this.factory = factory;
+		this.breaker = new CircuitBreaker(server.getAlias());
+		this.controller = new ConcurrencyController(server.getAlias(), server.settings().getMaxConnections(), server.settings().isAdaptive());
 	}
 
 	public String getAlias() {
@@ -26,6 +45,7 @@ public class ServerDaemon extends Thread {
 
 	public void forceUpdate() {
 		nextUpdate.set(0L);
+		wakeUp();
 	}
 
 	public synchronized void setPaused(long time) {
@@ -36,6 +56,7 @@ public class ServerDaemon extends Thread {
 				job = null;
 			}
 		}
+		wakeUp();
 	}
 
 	public synchronized void shutdown() {
@@ -48,29 +69,118 @@ public class ServerDaemon extends Thread {
 
 	@Override
 	public void run() {
-		while(!this.isInterrupted()) {
-			long pausedTime = paused.get();
-			if (pausedTime != -1L) {
-				if (System.currentTimeMillis() < pausedTime) {
-					try {
-						Thread.sleep(1000L);
-					} catch (InterruptedException e) { }
-					continue;
-				} else {
-					setPaused(-1L);
-					SFTPService.setupTray();
+		startWatcher();
+		try {
+			while(!this.isInterrupted()) {
+				long pausedTime = paused.get();
+				if (pausedTime != -1L) {
+					if (System.currentTimeMillis() < pausedTime) {
+						await(pausedTime);
+						continue;
+					} else {
+						setPaused(-1L);
+						SFTPService.setupTray();
+					}
+				}
+				if (watcher != null && watcher.isOverflowed()) {
+					logger.info("Missed local changes for [" + server.getAlias() + "], rescanning");
+					forceUpdate();
+				}
+				final long nextUpdateTime = nextUpdate.get();
+				if (breaker.isOpen()) {
+					//Nothing can be synced, local changes stay queued in the watcher until the server is back
+				} else if (System.currentTimeMillis() > nextUpdateTime && job == null) {
+					if (watcher != null) {
+						//The full scan picks up everything that changed before it started
+						watcher.clear();
+					}
+					job = new DaemonJob(newExecutor(server, factory), server, breaker, controller);
+					job.run();
+					job = null;
+					long next = System.currentTimeMillis() + (server.getRecheckMinutes() * 60 * 1000L);
+					if (breaker.isOpen()) {
+						//The cycle was cut short, retry as soon as the server may be back
+						next = Math.min(next, breaker.getRetryTime());
+					}
+					nextUpdate.compareAndSet(nextUpdateTime, next);
+				} else if (watcher != null && job == null) {
+					List<File> changed = watcher.poll();
+					if (!changed.isEmpty()) {
+						logger.info("Uploading " + changed.size() + " changed paths for [" + server.getAlias() + "]");
+						job = new DaemonJob(newExecutor(server, factory), server, breaker, controller, changed);
+						job.run();
+						job = null;
+						if (breaker.isOpen()) {
+							//Uploads that failed are picked up by a full scan once the server is back
+							nextUpdate.set(breaker.getRetryTime());
+						}
+					}
 				}
+				await(nextWakeTime());
 			}
-			final long nextUpdateTime = nextUpdate.get();
-			if (System.currentTimeMillis() > nextUpdateTime && job == null) {
-				job = new DaemonJob(Executors.newFixedThreadPool(server.getSyncMode() == SyncMode.UPLOAD.getMode() ? 2 : Runtime.getRuntime().availableProcessors() * 2, factory), server);
-				job.run();
-				job = null;
-				nextUpdate.compareAndSet(nextUpdateTime, System.currentTimeMillis() + (server.getRecheckMinutes() * 60 * 1000L));
+		} catch (InterruptedException e) {
+			//Shut down
+		} finally {
+			if (watcher != null) {
+				watcher.close();
 			}
+		}
+	}
+
+	private void startWatcher() {
+		if (server.settings().isWatchLocal() && server.getSyncMode() != SyncMode.CLONE.getMode()) {
 			try {
-				Thread.sleep(1000L);
-			} catch (InterruptedException e) { }
+				File localDir = new File(server.getLocalDir());
+				localDir.mkdirs();
+				watcher = new LocalWatcher(localDir, new Runnable() {
+					@Override
+					public void run() {
+						wakeUp();
+					}
+				});
+				watcher.start();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to watch [" + server.getLocalDir() + "], falling back to periodic scans", e);
+			}
+		}
+	}
+
+	private long nextWakeTime() {
+		if (breaker.isOpen()) {
+			return breaker.getRetryTime();
+		}
+		long time = nextUpdate.get();
+		if (watcher != null) {
+			time = Math.min(time, watcher.getReadyTime());
+		}
+		return time;
+	}
+
+	/**
+	 * Waits until the given time, or until a recheck, pause change or local change wakes the daemon up.
+	 */
+	private void await(long time) throws InterruptedException {
+		synchronized(wakeLock) {
+			long delay;
+			while (!woken && (delay = time - System.currentTimeMillis()) > 0) {
+				wakeLock.wait(delay);
+			}
+			woken = false;
+		}
+	}
+
+	private void wakeUp() {
+		synchronized(wakeLock) {
+			woken = true;
+			wakeLock.notifyAll();
+		}
+	}
+
+	static ExecutorService newExecutor(ServerEntry server, ThreadFactory factory) {
+		if (server.settings().isVirtualThreads()) {
+			return new VirtualThreadExecutor(new NamedThreadFactory("Server [" + server.getAlias() + "] Task - %1", true), server.settings().getConcurrency());
 		}
+		int threads = server.getSyncMode() == SyncMode.UPLOAD.getMode() ? 2 : Runtime.getRuntime().availableProcessors() * 2;
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(64, ScheduledTask.ORDER), factory);
 	}
 }
@@ -31,6 +31,7 @@ public class ServerEntry {
 	@UIOrder(9)
 	@UITitle("  Recheck Cooldown")
 	private int recheckMinutes;
+	private final SyncSettings settings = new SyncSettings();
 
 	public void set(ServerEntry entry) {
 		this.alias = entry.alias;
@@ -115,4 +116,9 @@ public class ServerEntry {
 	public void setRecheckMinutes(int recheckMinutes) {
 		this.recheckMinutes = recheckMinutes;
 	}
+
+	//Not a bean property, so the server form does not try to map it
+	public SyncSettings settings() {
+		return settings;
+	}
 }
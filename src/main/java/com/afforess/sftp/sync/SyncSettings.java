@@ -0,0 +1,264 @@
+package com.afforess.sftp.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.afforess.sftp.sync.yml.YAMLNode;
+
+/**
+ * Advanced per-server settings that are only configurable through servers.yml.
+ */
+public class SyncSettings {
+	private CompareMode compareMode = CompareMode.CHECKSUM;
+	private boolean watchLocal = false;
+	private boolean remoteSnapshot = false;
+	private int segmentThreshold = 256;
+	private int segments = 4;
+	private int deltaThreshold = 64;
+	private int channelsPerSession = 4;
+	private int maxConnections = 8;
+	private boolean virtualThreads = false;
+	private int concurrency = 64;
+	private boolean adaptive = true;
+	private int bandwidthWeight = 1;
+	private int batchThreshold = 64;
+	private CompressionMode compression = CompressionMode.OFF;
+	private String ciphers = "";
+	private String macs = "";
+	private String kex = "";
+	private SchedulePolicy schedulePolicy = SchedulePolicy.SIZE;
+	private List<String> hotPaths = new ArrayList<String>();
+
+	public CompareMode getCompareMode() {
+		return compareMode;
+	}
+
+	public void setCompareMode(CompareMode compareMode) {
+		this.compareMode = compareMode;
+	}
+
+	public boolean isWatchLocal() {
+		return watchLocal;
+	}
+
+	public void setWatchLocal(boolean watchLocal) {
+		this.watchLocal = watchLocal;
+	}
+
+	public boolean isRemoteSnapshot() {
+		return remoteSnapshot;
+	}
+
+	public void setRemoteSnapshot(boolean remoteSnapshot) {
+		this.remoteSnapshot = remoteSnapshot;
+	}
+
+	/**
+	 * Size in MB above which files are downloaded in segments, 0 to disable.
+	 */
+	public int getSegmentThreshold() {
+		return segmentThreshold;
+	}
+
+	public void setSegmentThreshold(int segmentThreshold) {
+		this.segmentThreshold = segmentThreshold;
+	}
+
+	public int getSegments() {
+		return segments;
+	}
+
+	public void setSegments(int segments) {
+		this.segments = segments;
+	}
+
+	/**
+	 * Size in MB above which modified files only transfer their changed blocks, 0 to disable.
+	 */
+	public int getDeltaThreshold() {
+		return deltaThreshold;
+	}
+
+	public void setDeltaThreshold(int deltaThreshold) {
+		this.deltaThreshold = deltaThreshold;
+	}
+
+	/**
+	 * How many pooled sftp channels share one SSH session. OpenSSH allows 10 per session by default,
+	 * and each connection also opens short lived exec channels for checksums.
+	 */
+	public int getChannelsPerSession() {
+		return channelsPerSession;
+	}
+
+	public void setChannelsPerSession(int channelsPerSession) {
+		this.channelsPerSession = channelsPerSession;
+	}
+
+	/**
+	 * Upper bound on pooled sftp connections, tasks wait for a free one beyond it.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * How many tasks may run at once when each runs on its own virtual thread.
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Whether the connection limit adapts to measured throughput, with max-connections as its ceiling.
+	 */
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * This server's share of the global bandwidth limits, relative to the other servers transferring at the same time.
+	 */
+	public int getBandwidthWeight() {
+		return bandwidthWeight;
+	}
+
+	public void setBandwidthWeight(int bandwidthWeight) {
+		this.bandwidthWeight = bandwidthWeight;
+	}
+
+	/**
+	 * Size in KB below which files of a directory are transferred together as one tar stream, 0 to disable.
+	 */
+	public int getBatchThreshold() {
+		return batchThreshold;
+	}
+
+	public void setBatchThreshold(int batchThreshold) {
+		this.batchThreshold = batchThreshold;
+	}
+
+	public CompressionMode getCompression() {
+		return compression;
+	}
+
+	public void setCompression(CompressionMode compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Comma separated cipher names in order of preference, empty for the JSch defaults.
+	 */
+	public String getCiphers() {
+		return ciphers;
+	}
+
+	public void setCiphers(String ciphers) {
+		this.ciphers = ciphers;
+	}
+
+	/**
+	 * Comma separated MAC names in order of preference, empty for the JSch defaults.
+	 */
+	public String getMacs() {
+		return macs;
+	}
+
+	public void setMacs(String macs) {
+		this.macs = macs;
+	}
+
+	/**
+	 * Comma separated key exchange names in order of preference, empty for the JSch defaults.
+	 */
+	public String getKex() {
+		return kex;
+	}
+
+	public void setKex(String kex) {
+		this.kex = kex;
+	}
+
+	public SchedulePolicy getSchedulePolicy() {
+		return schedulePolicy;
+	}
+
+	public void setSchedulePolicy(SchedulePolicy schedulePolicy) {
+		this.schedulePolicy = schedulePolicy;
+	}
+
+	/**
+	 * Glob patterns, relative to the remote directory, of files that transfer ahead of everything else.
+	 */
+	public List<String> getHotPaths() {
+		return hotPaths;
+	}
+
+	public void setHotPaths(List<String> hotPaths) {
+		this.hotPaths = hotPaths;
+	}
+
+	public void load(YAMLNode yml, String path) {
+		compareMode = CompareMode.getModeByName(yml.getString(path + ".compare", compareMode.getName()));
+		watchLocal = yml.getBoolean(path + ".watch", watchLocal);
+		remoteSnapshot = yml.getBoolean(path + ".snapshot", remoteSnapshot);
+		segmentThreshold = yml.getInt(path + ".segment-threshold", segmentThreshold);
+		segments = Math.max(1, yml.getInt(path + ".segments", segments));
+		deltaThreshold = yml.getInt(path + ".delta-threshold", deltaThreshold);
+		channelsPerSession = Math.max(1, yml.getInt(path + ".channels-per-session", channelsPerSession));
+		maxConnections = Math.max(1, yml.getInt(path + ".max-connections", maxConnections));
+		virtualThreads = yml.getBoolean(path + ".virtual-threads", virtualThreads);
+		concurrency = Math.max(1, yml.getInt(path + ".concurrency", concurrency));
+		adaptive = yml.getBoolean(path + ".adaptive", adaptive);
+		bandwidthWeight = Math.max(1, yml.getInt(path + ".bandwidth-weight", bandwidthWeight));
+		batchThreshold = yml.getInt(path + ".batch-threshold", batchThreshold);
+		compression = CompressionMode.getModeByName(yml.getString(path + ".compression", compression.getName()));
+		ciphers = yml.getString(path + ".ciphers", ciphers).replace(" ", "");
+		macs = yml.getString(path + ".macs", macs).replace(" ", "");
+		kex = yml.getString(path + ".kex", kex).replace(" ", "");
+		schedulePolicy = SchedulePolicy.getPolicyByName(yml.getString(path + ".schedule", schedulePolicy.getName()));
+		hotPaths = yml.getStringList(path + ".hot-paths", hotPaths);
+	}
+
+	public void save(YAMLNode yml, String path) {
+		yml.setProperty(path + ".compare", compareMode.getName());
+		yml.setProperty(path + ".watch", watchLocal);
+		yml.setProperty(path + ".snapshot", remoteSnapshot);
+		yml.setProperty(path + ".segment-threshold", segmentThreshold);
+		yml.setProperty(path + ".segments", segments);
+		yml.setProperty(path + ".delta-threshold", deltaThreshold);
+		yml.setProperty(path + ".channels-per-session", channelsPerSession);
+		yml.setProperty(path + ".max-connections", maxConnections);
+		yml.setProperty(path + ".virtual-threads", virtualThreads);
+		yml.setProperty(path + ".concurrency", concurrency);
+		yml.setProperty(path + ".adaptive", adaptive);
+		yml.setProperty(path + ".bandwidth-weight", bandwidthWeight);
+		yml.setProperty(path + ".batch-threshold", batchThreshold);
+		yml.setProperty(path + ".compression", compression.getName());
+		yml.setProperty(path + ".ciphers", ciphers);
+		yml.setProperty(path + ".macs", macs);
+		yml.setProperty(path + ".kex", kex);
+		yml.setProperty(path + ".schedule", schedulePolicy.getName());
+		yml.setProperty(path + ".hot-paths", hotPaths);
+	}
+}
@@ -0,0 +1,37 @@
+package com.afforess.sftp.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The lines of running tasks shown in the tray icon's tooltip. Kept apart from the tray itself so it
+ * can be used without a display.
+ */
+class TrayTooltip {
+	private static final List<TooltipLine> lines = new ArrayList<TooltipLine>();
+
+	static synchronized void add(TooltipLine line) {
+		lines.add(line);
+	}
+
+	static synchronized void remove(TooltipLine line) {
+		lines.remove(line);
+	}
+
+	/**
+	 * Appends the tooltip of every line that has one, one per line.
+	 */
+	static synchronized void append(StringBuilder builder) {
+		boolean first = true;
+		for (TooltipLine line : lines) {
+			String text = line.getTooltip();
+			if (text != null) {
+				if (!first) {
+					builder.append('\n');
+				}
+				first = false;
+				builder.append(text);
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.afforess.sftp.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every task on its own virtual thread, with at most a fixed number of them running at once.
+ * Tasks beyond that wait in a queue ordered by {@link ScheduledTask#ORDER}, and tasks that block on
+ * the network release their carrier thread while they wait.
+ */
+class VirtualThreadExecutor extends AbstractExecutorService {
+	private final ExecutorService threads;
+	private final Semaphore permits;
+	private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>(64, ScheduledTask.ORDER);
+	VirtualThreadExecutor(ThreadFactory factory, int concurrency) {
+		this.threads = Executors.newThreadPerTaskExecutor(factory);
+		this.permits = new Semaphore(concurrency);
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (threads.isShutdown()) {
+			throw new RejectedExecutionException("Executor is shut down");
+		}
+		queue.add(task);
+		dispatch();
+	}
+
+	/**
+	 * Starts queued tasks while permits are free. Finished tasks call it again for the next ones.
+	 */
+	private void dispatch() {
+		while (!queue.isEmpty() && permits.tryAcquire()) {
+			final Runnable task = queue.poll();
+			if (task == null) {
+				permits.release();
+				continue;
+			}
+			try {
+				threads.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run();
+						} finally {
+							permits.release();
+							dispatch();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				permits.release();
+				queue.clear();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		threads.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		List<Runnable> pending = new ArrayList<Runnable>();
+		queue.drainTo(pending);
+		pending.addAll(threads.shutdownNow());
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return threads.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return threads.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return threads.awaitTermination(timeout, unit);
+	}
+}
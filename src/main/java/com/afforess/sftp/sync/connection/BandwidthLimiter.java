@@ -0,0 +1,133 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Token bucket limiting one direction of transfer across every server. Each server draws from its own
+ * share, whose rate is the global limit split by weight among the servers that transferred in the last
+ * second, so an idle server's share goes to the busy ones. The limit can be changed at any time and
+ * applies to transfers already under way.
+ */
+public class BandwidthLimiter {
+	public static final BandwidthLimiter UPLOAD = new BandwidthLimiter();
+	public static final BandwidthLimiter DOWNLOAD = new BandwidthLimiter();
+	private static final long ACTIVE_TIME = 1000L * 1000L * 1000L;
+	private static final double BURST_SECONDS = 0.25D;
+	private static final int MAX_CHUNK = 16 * 1024;
+	private final Map<String, Share> shares = new HashMap<String, Share>();
+	private volatile long rate = 0L;
+
+	/**
+	 * Bytes per second for all servers together, 0 for no limit.
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	public void setRate(long rate) {
+		this.rate = Math.max(0L, rate);
+	}
+
+	public synchronized Share share(String name, int weight) {
+		Share share = shares.get(name);
+		if (share == null) {
+			share = new Share();
+			shares.put(name, share);
+		}
+		share.weight = Math.max(1, weight);
+		return share;
+	}
+
+	private synchronized int activeWeight(long now) {
+		int total = 0;
+		for (Share share : shares.values()) {
+			if (now - share.lastActive < ACTIVE_TIME) {
+				total += share.weight;
+			}
+		}
+		return total;
+	}
+
+	public class Share {
+		private volatile int weight = 1;
+		private volatile long lastActive = System.nanoTime() - ACTIVE_TIME;
+		private double tokens = 0D;
+		private long lastRefill = System.nanoTime();
+
+		/**
+		 * Takes the bytes from the bucket, sleeping for as long as it takes the share's rate to cover any deficit.
+		 */
+		void consume(int bytes) throws InterruptedIOException {
+			long limit = rate;
+			if (limit <= 0L || bytes <= 0) {
+				return;
+			}
+			long sleep;
+			synchronized(this) {
+				long now = System.nanoTime();
+				lastActive = now;
+				double shareRate = limit * (double) weight / Math.max(weight, activeWeight(now));
+				tokens = Math.min(shareRate * BURST_SECONDS, tokens + (now - lastRefill) / 1E9D * shareRate);
+				lastRefill = now;
+				tokens -= bytes;
+				sleep = tokens < 0 ? (long) (-tokens / shareRate * 1000D) : 0L;
+			}
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while throttled");
+				}
+			}
+		}
+
+		public InputStream wrap(InputStream in) {
+			return new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					int read = super.read();
+					if (read >= 0) {
+						consume(1);
+					}
+					return read;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int read = super.read(b, off, Math.min(len, MAX_CHUNK));
+					consume(read);
+					return read;
+				}
+			};
+		}
+
+		public OutputStream wrap(OutputStream out) {
+			return new FilterOutputStream(out) {
+				@Override
+				public void write(int b) throws IOException {
+					consume(1);
+					out.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					while (len > 0) {
+						int chunk = Math.min(len, MAX_CHUNK);
+						consume(chunk);
+						out.write(b, off, chunk);
+						off += chunk;
+						len -= chunk;
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Finds blocks of a signature inside a stream using the rolling Adler-32 as a cheap filter and MD5
+ * to confirm, in the manner of rsync. Everything between matches is reported as literal data.
+ */
+class BlockMatcher {
+	private final int blockSize;
+	private final Map<Integer, List<Block>> blocks = new HashMap<Integer, List<Block>>();
+	BlockMatcher(List<Block> signature, int blockSize) {
+		this.blockSize = blockSize;
+		for (Block block : signature) {
+			List<Block> list = blocks.get(block.weak);
+			if (list == null) {
+				list = new ArrayList<Block>(1);
+				blocks.put(block.weak, list);
+			}
+			list.add(block);
+		}
+	}
+
+	void scan(InputStream in, Listener listener) throws IOException {
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		byte[] buffer = new byte[Math.max(blockSize * 4, 1024 * 1024)];
+		int start = 0;
+		int literalStart = 0;
+		int end = fill(in, buffer, 0);
+		boolean eof = end < buffer.length;
+		long base = 0L;
+		RollingChecksum checksum = null;
+		while (true) {
+			if (end - start <= blockSize && !eof) {
+				listener.literal(buffer, literalStart, start - literalStart);
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				base += start;
+				end -= start;
+				start = literalStart = 0;
+				int read = fill(in, buffer, end);
+				eof = read < buffer.length - end;
+				end += read;
+			}
+			if (end - start < blockSize) {
+				break;
+			}
+			if (checksum == null) {
+				checksum = new RollingChecksum(buffer, start, blockSize);
+			}
+			Block match = find(checksum.getValue(), buffer, start, md5);
+			if (match != null) {
+				listener.literal(buffer, literalStart, start - literalStart);
+				listener.matched(match, base + start);
+				start += blockSize;
+				literalStart = start;
+				checksum = null;
+			} else if (start + blockSize < end) {
+				checksum.roll(buffer[start], buffer[start + blockSize]);
+				start++;
+			} else {
+				break;
+			}
+		}
+		listener.literal(buffer, literalStart, end - literalStart);
+	}
+
+	private Block find(int weak, byte[] buffer, int offset, MessageDigest md5) {
+		List<Block> candidates = blocks.get(weak);
+		if (candidates == null) {
+			return null;
+		}
+		md5.update(buffer, offset, blockSize);
+		String strong = Hex.encodeHexString(md5.digest());
+		for (Block block : candidates) {
+			if (block.strong.equals(strong)) {
+				return block;
+			}
+		}
+		return null;
+	}
+
+	private static int fill(InputStream in, byte[] buffer, int offset) throws IOException {
+		int total = 0;
+		int read;
+		while (offset + total < buffer.length && (read = in.read(buffer, offset + total, buffer.length - offset - total)) != -1) {
+			total += read;
+		}
+		return total;
+	}
+
+	static class Block {
+		final int index;
+		final int weak;
+		final String strong;
+		Block(int index, int weak, String strong) {
+			this.index = index;
+			this.weak = weak;
+			this.strong = strong;
+		}
+	}
+
+	interface Listener {
+		void matched(Block block, long offset) throws IOException;
+
+		void literal(byte[] buffer, int offset, int length) throws IOException;
+	}
+}
@@ -0,0 +1,210 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.afforess.sftp.sync.ServerEntry;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Cipher;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.MAC;
+
+/**
+ * Compares the ciphers JSch supports, to pick the ciphers setting of a server. Each cipher is first timed
+ * locally, encrypting and authenticating packets the way the transport does with no network involved.
+ * Given a server, each is then timed for a full handshake and for bulk data in both directions, using
+ * exec channels so that disk speed on either side does not count.
+ */
+public class CipherBenchmark {
+	private static final String[] CANDIDATES = {"aes128-ctr", "aes192-ctr", "aes256-ctr", "aes128-cbc", "aes192-cbc", "aes256-cbc",
+			"arcfour128", "arcfour256", "blowfish-cbc", "3des-ctr", "3des-cbc"};
+	private static final int PACKET_SIZE = 32 * 1024;
+	private static final long LOCAL_WARMUP = 300 * 1000000L;
+	private static final long LOCAL_DURATION = 1000 * 1000000L;
+	private static final long REMOTE_BYTES = 32 * 1024 * 1024L;
+	private static final int HANDSHAKES = 3;
+	private final ServerEntry server;
+	/**
+	 * @param server the server to measure against, or null to only measure locally
+	 */
+	public CipherBenchmark(ServerEntry server) {
+		this.server = server;
+	}
+
+	public void run(PrintStream out) {
+		String mac = server != null && !server.settings().getMacs().isEmpty() ? server.settings().getMacs().split(",")[0] : "hmac-sha1";
+		out.println("Benchmarking ciphers with " + mac + (server != null ? " against [" + server.getAlias() + "]" : " locally"));
+		out.println(String.format("%-14s %12s %14s %13s %15s", "Cipher", "Local MB/s", "Handshake ms", "Upload MB/s", "Download MB/s"));
+		List<Result> results = new ArrayList<Result>();
+		for (String name : CANDIDATES) {
+			Result result = new Result(name);
+			try {
+				result.local = local(name, mac);
+			} catch (Exception e) {
+				out.println(String.format("%-14s unavailable: %s", name, e));
+				continue;
+			}
+			if (server != null) {
+				try {
+					remote(result);
+				} catch (Exception e) {
+					out.println(String.format("%-14s %12.1f refused: %s", name, result.local, e.getMessage()));
+					continue;
+				}
+			}
+			results.add(result);
+			out.println(String.format("%-14s %12.1f %14s %13s %15s", name, result.local, format(result.handshake), format(result.upload), format(result.download)));
+		}
+		if (results.isEmpty()) {
+			out.println("No cipher could be used");
+			return;
+		}
+		Collections.sort(results, new Comparator<Result>() {
+			@Override
+			public int compare(Result a, Result b) {
+				return Double.compare(b.score(), a.score());
+			}
+		});
+		StringBuilder order = new StringBuilder();
+		for (Result result : results) {
+			order.append(order.length() > 0 ? "," : "").append(result.name);
+		}
+		out.println("Fastest is " + results.get(0).name + ". Recommended setting, fastest first:");
+		out.println("ciphers: " + order);
+	}
+
+	/**
+	 * Throughput in MB/s of encrypting and MACing packets in memory, after a short warm up.
+	 */
+	private static double local(String name, String macName) throws Exception {
+		Cipher cipher = (Cipher) Class.forName(JSch.getConfig(name)).getDeclaredConstructor().newInstance();
+		MAC mac = (MAC) Class.forName(JSch.getConfig(macName)).getDeclaredConstructor().newInstance();
+		cipher.init(Cipher.ENCRYPT_MODE, new byte[cipher.getBlockSize() * 4], new byte[cipher.getIVSize()]);
+		mac.init(new byte[mac.getBlockSize()]);
+		byte[] packet = new byte[PACKET_SIZE];
+		byte[] digest = new byte[mac.getBlockSize()];
+		int sequence = 0;
+		for (long end = System.nanoTime() + LOCAL_WARMUP; System.nanoTime() < end; sequence++) {
+			encrypt(cipher, mac, sequence, packet, digest);
+		}
+		long time = System.nanoTime();
+		long bytes = 0L;
+		for (long end = time + LOCAL_DURATION; System.nanoTime() < end; sequence++) {
+			encrypt(cipher, mac, sequence, packet, digest);
+			bytes += packet.length;
+		}
+		return rate(bytes, System.nanoTime() - time);
+	}
+
+	private static void encrypt(Cipher cipher, MAC mac, int sequence, byte[] packet, byte[] digest) throws Exception {
+		mac.update(sequence);
+		mac.update(packet, 0, packet.length);
+		mac.doFinal(digest, 0);
+		cipher.update(packet, 0, packet.length, packet, 0);
+	}
+
+	private void remote(Result result) throws Exception {
+		ServerEntry probe = new ServerEntry();
+		probe.set(server);
+		probe.settings().setCiphers(result.name);
+		probe.settings().setMacs(server.settings().getMacs());
+		probe.settings().setKex(server.settings().getKex());
+		long total = 0L;
+		SSHSession session = null;
+		for (int i = 0; i < HANDSHAKES; i++) {
+			if (session != null) {
+				session.disconnect();
+			}
+			long time = System.nanoTime();
+			session = new SSHSession(probe, null, false);
+			session.connect();
+			total += System.nanoTime() - time;
+		}
+		result.handshake = total / HANDSHAKES / 1E6D;
+		try {
+			result.upload = upload(session);
+			result.download = download(session);
+		} finally {
+			session.disconnect();
+		}
+	}
+
+	private static double upload(SSHSession session) throws Exception {
+		ChannelExec exec = (ChannelExec) session.getSession().openChannel("exec");
+		exec.setCommand("cat > /dev/null");
+		OutputStream out = exec.getOutputStream();
+		exec.connect();
+		try {
+			byte[] buffer = new byte[PACKET_SIZE];
+			long time = System.nanoTime();
+			for (long sent = 0L; sent < REMOTE_BYTES; sent += buffer.length) {
+				out.write(buffer);
+			}
+			out.close();
+			waitForExit(exec);
+			return rate(REMOTE_BYTES, System.nanoTime() - time);
+		} finally {
+			exec.disconnect();
+		}
+	}
+
+	private static double download(SSHSession session) throws Exception {
+		ChannelExec exec = (ChannelExec) session.getSession().openChannel("exec");
+		exec.setCommand("head -c " + REMOTE_BYTES + " /dev/zero");
+		exec.setInputStream(null);
+		InputStream in = exec.getInputStream();
+		exec.connect();
+		try {
+			byte[] buffer = new byte[PACKET_SIZE];
+			long time = System.nanoTime();
+			long received = 0L;
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				received += read;
+			}
+			if (received < REMOTE_BYTES) {
+				throw new IllegalStateException("Only received " + received + " bytes");
+			}
+			return rate(received, System.nanoTime() - time);
+		} finally {
+			exec.disconnect();
+		}
+	}
+
+	private static void waitForExit(ChannelExec exec) throws InterruptedException {
+		while (!exec.isClosed()) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static double rate(long bytes, long nanos) {
+		return bytes / (1024D * 1024D) / (nanos / 1E9D);
+	}
+
+	private static String format(double value) {
+		return value > 0 ? String.format("%.1f", value) : "-";
+	}
+
+	private static class Result {
+		final String name;
+		double local;
+		double handshake;
+		double upload;
+		double download;
+		Result(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Measured throughput against the server when there is one, local otherwise.
+		 */
+		double score() {
+			return upload > 0 ? Math.min(upload, download) : local;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.afforess.sftp.sync.connection;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Tracks whether a server is reachable. Once tripped, connection attempts fail fast until a jittered,
+ * exponentially growing delay has passed, after which attempts are let through again to probe the server.
+ */
+public class CircuitBreaker {
+	private static final Logger logger = Logger.getLogger("sftp-sync");
+	private static final long MIN_OPEN_TIME = 5 * 1000L;
+	private static final long MAX_OPEN_TIME = 10 * 60 * 1000L;
+	private final String name;
+	private int trips = 0;
+	private long openUntil = 0L;
+	public CircuitBreaker(String name) {
+		this.name = name;
+	}
+
+	public synchronized boolean isOpen() {
+		return System.currentTimeMillis() < openUntil;
+	}
+
+	/**
+	 * Time at which attempts are allowed again, in the past while the circuit is closed.
+	 */
+	public synchronized long getRetryTime() {
+		return openUntil;
+	}
+
+	public synchronized void success() {
+		if (trips > 0) {
+			logger.info("Server [" + name + "] is reachable again");
+			trips = 0;
+		}
+	}
+
+	/**
+	 * Opens the circuit. Failures of attempts that were already under way when it opened do not extend it.
+	 */
+	public synchronized void trip(Exception cause) {
+		long now = System.currentTimeMillis();
+		if (now < openUntil) {
+			return;
+		}
+		trips++;
+		long delay = jitter(Math.min(MAX_OPEN_TIME, MIN_OPEN_TIME << Math.min(trips - 1, 16)));
+		openUntil = now + delay;
+		logger.warning("Server [" + name + "] is unreachable (" + cause.getMessage() + "), next attempt in " + delay / 1000L + " s");
+	}
+
+	/**
+	 * Picks a random delay between half and all of the given one, so retries from many threads spread out.
+	 */
+	static long jitter(long delay) {
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+}
@@ -0,0 +1,69 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Guesses whether a file's data would shrink under SSH compression, so already compressed media can
+ * skip the CPU cost.
+ */
+public class Compressibility {
+	private static final int SAMPLE_SIZE = 64 * 1024;
+	//Compressed sample must be at most this fraction of the original to be worth it
+	private static final double MAX_RATIO = 0.9D;
+	private static final Set<String> COMPRESSED = new HashSet<String>(Arrays.asList(
+			"7z", "apk", "avi", "bz2", "cab", "deb", "docx", "epub", "flac", "flv", "gif", "gz", "heic", "jar", "jpeg", "jpg",
+			"lz", "lz4", "lzma", "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "mpeg", "mpg", "ogg", "opus", "pdf", "png", "pptx",
+			"rar", "rpm", "tbz2", "tgz", "txz", "war", "webm", "webp", "whl", "wmv", "xlsx", "xz", "zip", "zst"));
+
+	/**
+	 * Classifies by extension alone, for remote files that cannot be sampled cheaply.
+	 */
+	public static boolean isCompressible(String name) {
+		return !COMPRESSED.contains(FilenameUtils.getExtension(name).toLowerCase());
+	}
+
+	/**
+	 * Classifies by extension, then by how well the start of the file deflates.
+	 */
+	public static boolean isCompressible(File file) {
+		if (!isCompressible(file.getName())) {
+			return false;
+		}
+		byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, file.length())];
+		if (sample.length == 0) {
+			return true;
+		}
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int read = IOUtils.read(in, sample);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(sample, 0, read);
+				deflater.finish();
+				byte[] out = new byte[sample.length + 64];
+				int compressed = 0;
+				while (!deflater.finished() && compressed < out.length) {
+					compressed += deflater.deflate(out, compressed, out.length - compressed);
+				}
+				return compressed <= read * MAX_RATIO;
+			} finally {
+				deflater.end();
+			}
+		} catch (IOException e) {
+			return true;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+}
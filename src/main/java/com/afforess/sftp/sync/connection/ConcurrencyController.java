@@ -0,0 +1,212 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.SocketFactory;
+
+/**
+ * Decides how many connections to a server may be borrowed at once, adjusting the limit as transfers run.
+ *
+ * <p>Every few seconds the bytes moved over the server's sockets, the time connections were held and the
+ * failures are compared with the previous window. While callers are waiting for a connection and
+ * throughput keeps up, the limit grows by one; it is halved when connections start failing and backed
+ * off by one when more concurrency made throughput or latency worse (AIMD).</p>
+ */
+public class ConcurrencyController {
+	private static final Logger logger = Logger.getLogger("sftp-sync");
+	private static final long WINDOW = 5 * 1000L;
+	private static final double ERROR_RATE = 0.05D;
+	private final String name;
+	private final boolean adaptive;
+	private final int max;
+	private final Limit permits;
+	private final AtomicLong bytes = new AtomicLong(0L);
+	private final AtomicLong operations = new AtomicLong(0L);
+	private final AtomicLong heldNanos = new AtomicLong(0L);
+	private final AtomicLong errors = new AtomicLong(0L);
+	private final AtomicLong waits = new AtomicLong(0L);
+	private long windowStart = System.currentTimeMillis();
+	private double lastThroughput = -1D;
+	private double baseLatency = -1D;
+	private boolean grew = false;
+	/**
+	 * @param max upper bound on the limit, which is also the fixed limit when not adaptive
+	 */
+	public ConcurrencyController(String name, int max, boolean adaptive) {
+		this.name = name;
+		this.max = Math.max(1, max);
+		this.adaptive = adaptive;
+		this.permits = new Limit(adaptive ? Math.max(1, this.max / 2) : this.max);
+	}
+
+	public int getLimit() {
+		return permits.getLimit();
+	}
+
+	void acquire() throws InterruptedException {
+		if (!permits.tryAcquire()) {
+			waits.incrementAndGet();
+			permits.acquire();
+		}
+	}
+
+	boolean tryAcquire() {
+		if (permits.tryAcquire()) {
+			return true;
+		}
+		waits.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Returns a permit after a connection was held for the given time.
+	 */
+	void release(long held) {
+		operations.incrementAndGet();
+		heldNanos.addAndGet(held);
+		permits.release();
+		adjust();
+	}
+
+	/**
+	 * Returns a permit without counting an operation, after a failed borrow or when the pool is cleared.
+	 */
+	void release() {
+		permits.release();
+	}
+
+	void failed() {
+		errors.incrementAndGet();
+	}
+
+	SocketFactory socketFactory() {
+		return new CountingSocketFactory();
+	}
+
+	private synchronized void adjust() {
+		long now = System.currentTimeMillis();
+		if (!adaptive || now - windowStart < WINDOW) {
+			return;
+		}
+		double seconds = (now - windowStart) / 1000D;
+		windowStart = now;
+		long ops = operations.getAndSet(0L);
+		long failures = errors.getAndSet(0L);
+		long waited = waits.getAndSet(0L);
+		double throughput = bytes.getAndSet(0L) / seconds;
+		double latency = ops > 0 ? heldNanos.getAndSet(0L) / 1E6D / ops : 0D;
+		int limit = permits.getLimit();
+		int next = limit;
+		if (failures > 0 && failures >= ERROR_RATE * (ops + failures)) {
+			next = Math.max(1, limit / 2);
+		} else if (grew && lastThroughput > 0 && (throughput < lastThroughput * 0.8D || (baseLatency > 0 && latency > baseLatency * 2D && throughput < lastThroughput * 1.05D))) {
+			//The last step up did not pay off
+			next = limit - 1;
+		} else if (waited > 0 && throughput >= lastThroughput * 0.95D) {
+			next = Math.min(max, limit + 1);
+		}
+		if (ops > 0 && latency > 0) {
+			baseLatency = baseLatency < 0 ? latency : Math.min(latency, baseLatency * 0.9D + latency * 0.1D);
+		}
+		grew = next > limit;
+		lastThroughput = throughput;
+		if (next != limit) {
+			permits.setLimit(next);
+			logger.info("Server [" + name + "] concurrency " + limit + " -> " + next + " (" + (long) (throughput / 1024D) + " KB/s, "
+					+ (long) latency + " ms per operation, " + failures + " failures, " + waited + " waits)");
+		} else {
+			logger.fine("Server [" + name + "] concurrency " + limit + " (" + (long) (throughput / 1024D) + " KB/s, " + (long) latency + " ms per operation)");
+		}
+	}
+
+	/**
+	 * Semaphore whose number of permits can be changed while permits are out.
+	 */
+	private static class Limit extends Semaphore {
+		private static final long serialVersionUID = 1L;
+		private int limit;
+		Limit(int limit) {
+			super(limit, true);
+			this.limit = limit;
+		}
+
+		synchronized int getLimit() {
+			return limit;
+		}
+
+		synchronized void setLimit(int limit) {
+			if (limit > this.limit) {
+				release(limit - this.limit);
+			} else if (limit < this.limit) {
+				reducePermits(this.limit - limit);
+			}
+			this.limit = limit;
+		}
+	}
+
+	/**
+	 * Counts every byte read from and written to the server's sockets.
+	 */
+	private class CountingSocketFactory implements SocketFactory {
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(host, port), SSHSession.CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			return socket;
+		}
+
+		@Override
+		public InputStream getInputStream(Socket socket) throws IOException {
+			return new FilterInputStream(socket.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					int read = super.read();
+					if (read >= 0) {
+						bytes.incrementAndGet();
+					}
+					return read;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int read = super.read(b, off, len);
+					if (read > 0) {
+						bytes.addAndGet(read);
+					}
+					return read;
+				}
+			};
+		}
+
+		@Override
+		public OutputStream getOutputStream(Socket socket) throws IOException {
+			return new FilterOutputStream(socket.getOutputStream()) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					bytes.incrementAndGet();
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					bytes.addAndGet(len);
+				}
+			};
+		}
+	}
+}
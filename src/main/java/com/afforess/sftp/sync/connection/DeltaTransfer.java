@@ -0,0 +1,312 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.afforess.sftp.sync.connection.BlockMatcher.Block;
+import com.afforess.sftp.sync.exception.SFTPException;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+
+/**
+ * rsync style transfer of files that changed only partially. A small perl helper on the server computes
+ * block signatures (Adler-32 and MD5) of the remote file, and the local side rolls over its data to find
+ * which blocks it already has.
+ *
+ * <p>Downloads rebuild the new remote file from blocks found in the old local copy, fetching only the
+ * missing ranges with offset reads. Uploads stream copy and literal instructions to a second helper which
+ * rebuilds the file next to the old remote copy, checks its MD5 and renames it into place with the old copy's permissions.</p>
+ *
+ * <p>Both directions return false when the helper is not available or the result does not verify, in
+ * which case the caller should transfer the whole file.</p>
+ */
+public class DeltaTransfer {
+	private static final Logger logger = Logger.getLogger("sftp-sync");
+	private static final String TEMP_SUFFIX = ".sftp-sync-delta";
+	private static final int MAX_LITERAL = 64 * 1024;
+	private static final int MAX_COPY = 8 * 1024 * 1024;
+	private static final String SIGNATURE_SCRIPT =
+			"use Digest::MD5 qw(md5_hex); use Compress::Zlib qw(adler32);"
+			+ " open(F, \"<\", $ARGV[0]) or exit 2; binmode F; my $b;"
+			+ " while (read(F, $b, $ARGV[1])) { printf(\"%08x %s\\n\", adler32($b), md5_hex($b)); }";
+	//Instructions on stdin: C <block:uint32> <length:uint32> copies from the old file, L <length:uint32> <bytes> writes literal data, E ends
+	private static final String APPLY_SCRIPT =
+			"use Digest::MD5; my ($old, $tmp, $bs, $md5) = @ARGV;"
+			+ " open(O, \"<\", $old) or exit 2; binmode O; open(T, \">\", $tmp) or exit 3; binmode T; binmode STDIN;"
+			+ " my $d = Digest::MD5->new;"
+			+ " sub rd { my $n = shift; my $b = \"\"; while (length($b) < $n) { read(STDIN, $b, $n - length($b), length($b)) or exit 4; } return $b; }"
+			+ " while (1) { my $op = rd(1);"
+			+ " if ($op eq \"C\") { my ($i, $n) = unpack(\"NN\", rd(8)); my $b; seek(O, $i * $bs, 0) or exit 5; read(O, $b, $n) == $n or exit 5; print T $b or exit 6; $d->add($b); }"
+			+ " elsif ($op eq \"L\") { my $b = rd(unpack(\"N\", rd(4))); print T $b or exit 6; $d->add($b); }"
+			+ " elsif ($op eq \"E\") { close(T) or exit 6; my $h = $d->hexdigest;"
+			+ " if ($h eq $md5) { chmod((stat(O))[2] & 07777, $tmp); rename($tmp, $old) or exit 7; print \"OK\\n\"; } else { unlink($tmp); print \"MISMATCH $h\\n\"; } exit 0; }"
+			+ " else { exit 8; } }";
+	private final SFTPConnection conn;
+	private final int blockSize;
+	public DeltaTransfer(SFTPConnection conn, long size) {
+		this.conn = conn;
+		this.blockSize = blockSize(size);
+	}
+
+	/**
+	 * Roughly 16k blocks per file, but never smaller than 64 KB, rounded to 4 KB.
+	 */
+	static int blockSize(long size) {
+		long block = Math.max(64 * 1024L, size / 16384L);
+		return (int) Math.min(Integer.MAX_VALUE / 2, (block + 4095L) / 4096L * 4096L);
+	}
+
+	public static boolean isTemporary(String name) {
+		return name.endsWith(TEMP_SUFFIX);
+	}
+
+	/**
+	 * Replaces the local file with the remote file, reusing blocks of the local file where possible.
+	 */
+	public boolean download(RemoteFile remote, File local, String remoteMd5) throws IOException {
+		List<Block> signature = signature(remote.getPath());
+		if (signature == null || remoteMd5 == null) {
+			return false;
+		}
+		final Map<String, Long> found = new HashMap<String, Long>();
+		InputStream in = new BufferedInputStream(new FileInputStream(local));
+		try {
+			new BlockMatcher(signature, blockSize).scan(in, new BlockMatcher.Listener() {
+				@Override
+				public void matched(Block block, long offset) {
+					if (!found.containsKey(block.strong)) {
+						found.put(block.strong, offset);
+					}
+				}
+
+				@Override
+				public void literal(byte[] buffer, int offset, int length) { }
+			});
+		} finally {
+			in.close();
+		}
+		File temp = new File(local.getParentFile(), "." + local.getName() + TEMP_SUFFIX);
+		long reused = 0L;
+		ProgressMonitor monitor = new ProgressMonitor(remote.getSize());
+		remote.setMonitor(monitor);
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		RandomAccessFile old = new RandomAccessFile(local, "r");
+		OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), md5);
+		try {
+			byte[] buffer = new byte[blockSize];
+			int missingFrom = -1;
+			for (int i = 0; i <= signature.size(); i++) {
+				Long offset = i < signature.size() ? found.get(signature.get(i).strong) : null;
+				if (offset == null && i < signature.size()) {
+					if (missingFrom < 0) {
+						missingFrom = i;
+					}
+					continue;
+				}
+				if (missingFrom >= 0) {
+					long start = (long) missingFrom * blockSize;
+					long end = Math.min(remote.getSize(), (long) i * blockSize);
+					fetch(remote.getPath(), start, end - start, out, monitor);
+					missingFrom = -1;
+				}
+				if (offset != null) {
+					old.seek(offset);
+					old.readFully(buffer);
+					out.write(buffer);
+					monitor.count(blockSize);
+					reused += blockSize;
+				}
+			}
+			out.close();
+			out = null;
+		} finally {
+			IOUtils.closeQuietly(out);
+			old.close();
+			if (out != null) {
+				temp.delete();
+			}
+		}
+		String result = Hex.encodeHexString(md5.digest());
+		if (!result.equals(remoteMd5) || temp.length() != remote.getSize()) {
+			logger.warning("Delta download of [" + remote.getPath() + "] produced MD5 " + result + " instead of " + remoteMd5);
+			temp.delete();
+			return false;
+		}
+		SFTPConnection.replaceLocal(temp, local);
+		logger.info("Delta download of [" + remote.getPath() + "] reused " + reused + " of " + remote.getSize() + " bytes");
+		return true;
+	}
+
+	/**
+	 * Replaces the remote file at path with the local file, sending only the blocks the remote copy lacks.
+	 */
+	public boolean upload(File local, String path, String localMd5) throws IOException {
+		List<Block> signature = signature(path);
+		if (signature == null || localMd5 == null) {
+			return false;
+		}
+		String temp = path.substring(0, path.lastIndexOf('/') + 1) + "." + path.substring(path.lastIndexOf('/') + 1) + TEMP_SUFFIX;
+		ChannelExec exec = null;
+		InputStream in = null;
+		InputStream result = null;
+		try {
+			exec = conn.openExec("perl -e " + SFTPConnection.quote(APPLY_SCRIPT) + " -- " + SFTPConnection.quote(path) + " "
+					+ SFTPConnection.quote(temp) + " " + blockSize + " " + localMd5);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(conn.throttleUpload(exec.getOutputStream()), MAX_LITERAL + 5));
+			result = exec.getInputStream();
+			exec.connect();
+			in = new BufferedInputStream(new FileInputStream(local));
+			Encoder encoder = new Encoder(out);
+			new BlockMatcher(signature, blockSize).scan(in, encoder);
+			encoder.flushCopy();
+			out.writeByte('E');
+			out.close();
+			String status = new BufferedReader(new InputStreamReader(result, "UTF-8")).readLine();
+			if (!"OK".equals(status)) {
+				logger.warning("Delta upload of [" + path + "] failed: " + (status != null ? status : "helper exited with " + waitForExit(exec)));
+				return false;
+			}
+			logger.info("Delta upload of [" + path + "] sent " + encoder.sent + " of " + local.length() + " bytes");
+			return true;
+		} catch (JSchException e) {
+			throw new IOException(e);
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(result);
+			if (exec != null) {
+				exec.disconnect();
+			}
+		}
+	}
+
+	private class Encoder implements BlockMatcher.Listener {
+		private final DataOutputStream out;
+		private int copyBlock = -1;
+		private int copyLength = 0;
+		private long sent = 0L;
+		Encoder(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void matched(Block block, long offset) throws IOException {
+			if (copyBlock >= 0 && block.index == copyBlock + copyLength / blockSize && copyLength + blockSize <= MAX_COPY) {
+				copyLength += blockSize;
+				return;
+			}
+			flushCopy();
+			copyBlock = block.index;
+			copyLength = blockSize;
+		}
+
+		@Override
+		public void literal(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return;
+			}
+			flushCopy();
+			for (int i = 0; i < length; i += MAX_LITERAL) {
+				int chunk = Math.min(MAX_LITERAL, length - i);
+				out.writeByte('L');
+				out.writeInt(chunk);
+				out.write(buffer, offset + i, chunk);
+				sent += chunk;
+			}
+		}
+
+		void flushCopy() throws IOException {
+			if (copyBlock >= 0) {
+				out.writeByte('C');
+				out.writeInt(copyBlock);
+				out.writeInt(copyLength);
+				copyBlock = -1;
+			}
+		}
+	}
+
+	private void fetch(String path, long offset, long length, OutputStream out, ProgressMonitor monitor) throws IOException {
+		InputStream in = conn.openStream(path, monitor, offset);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			while (length > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+				if (read < 0) {
+					throw new IOException("Unexpected end of [" + path + "] at " + offset);
+				}
+				out.write(buffer, 0, read);
+				length -= read;
+				offset += read;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private List<Block> signature(String path) throws IOException {
+		ChannelExec exec = null;
+		InputStream stream = null;
+		try {
+			exec = conn.openExec("perl -e " + SFTPConnection.quote(SIGNATURE_SCRIPT) + " -- " + SFTPConnection.quote(path) + " " + blockSize);
+			stream = exec.getInputStream();
+			exec.connect();
+			List<Block> blocks = new ArrayList<Block>();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "US-ASCII"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() != 41) {
+					return null;
+				}
+				blocks.add(new Block(blocks.size(), (int) Long.parseLong(line.substring(0, 8), 16), line.substring(9)));
+			}
+			int status = waitForExit(exec);
+			if (status != 0) {
+				logger.info("Block signatures for [" + path + "] unavailable, helper exited with " + status);
+				return null;
+			}
+			return blocks;
+		} catch (SFTPException e) {
+			logger.info("Block signatures for [" + path + "] unavailable: " + e.getCause());
+			return null;
+		} catch (JSchException e) {
+			throw new IOException(e);
+		} finally {
+			IOUtils.closeQuietly(stream);
+			if (exec != null) {
+				exec.disconnect();
+			}
+		}
+	}
+
+	private static int waitForExit(ChannelExec exec) {
+		while (!exec.isClosed()) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+		}
+		return exec.getExitStatus();
+	}
+}
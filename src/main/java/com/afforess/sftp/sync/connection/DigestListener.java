@@ -0,0 +1,7 @@
+package com.afforess.sftp.sync.connection;
+
+public interface DigestListener {
+
+	public void digest(String name, String md5);
+
+}
@@ -1,22 +1,32 @@
 package com.afforess.sftp.sync.connection;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.jcraft.jsch.SftpProgressMonitor;
 
-class ProgressMonitor implements SftpProgressMonitor {
+/**
+ * Counts the bytes of a transfer as JSch reports them, for the tray tooltip.
+ */
+public class ProgressMonitor implements SftpProgressMonitor {
 	private final long total;
-	private long written;
-	ProgressMonitor(long total) {
+	private final AtomicLong written;
+	public ProgressMonitor(long total) {
+		this(total, 0L);
+	}
+
+	public ProgressMonitor(long total, long written) {
 		this.total = total;
+		this.written = new AtomicLong(written);
 	}
 
 	@Override
 	public boolean count(long count) {
-		written += count;
+		written.addAndGet(count);
 		return true;
 	}
 
 	public float getPercent() {
-		return written / (float) total;
+		return written.get() / (float) total;
 	}
 
 	@Override
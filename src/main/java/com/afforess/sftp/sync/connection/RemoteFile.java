@@ -18,13 +18,24 @@ public class RemoteFile {
 	private final String name;
 	private final String directory;
 	private final ChannelSftp channel;
-	private final SftpATTRS attributes;
+	private final boolean isDirectory;
+	private final long size;
+	private final int modified;
+	private final int accessed;
 	private ProgressMonitor monitor = null;
+	private BandwidthLimiter.Share throttle = null;
 	protected RemoteFile(String name, String directory, ChannelSftp channel, SftpATTRS attributes) {
+		this(name, directory, channel, attributes.isDir(), attributes.getSize(), attributes.getMTime(), attributes.getATime());
+	}
+
+	protected RemoteFile(String name, String directory, ChannelSftp channel, boolean isDirectory, long size, int modified, int accessed) {
 		this.name = name;
 		this.directory = directory;
 		this.channel = channel;
-		this.attributes = attributes;
+		this.isDirectory = isDirectory;
+		this.size = size;
+		this.modified = modified;
+		this.accessed = accessed;
 	}
 
 	public String getName() {
@@ -40,15 +51,19 @@ public class RemoteFile {
 	}
 
 	public boolean isDirectory() {
-		return attributes.isDir();
+		return isDirectory;
+	}
+
+	public long getSize() {
+		return size;
 	}
 
 	public long getModifiedTime() {
-		return FileTime.from(attributes.getMTime(), TimeUnit.SECONDS).toMillis();
+		return FileTime.from(modified, TimeUnit.SECONDS).toMillis();
 	}
 
 	public long getAccessedTime() {
-		return FileTime.from(attributes.getATime(), TimeUnit.SECONDS).toMillis();
+		return FileTime.from(accessed, TimeUnit.SECONDS).toMillis();
 	}
 
 	public String getMD5() {
@@ -88,13 +103,38 @@ public class RemoteFile {
 
 	public InputStream openStream() {
 		try {
-			this.monitor = new ProgressMonitor(attributes.getSize());
-			return channel.get(getPath(), monitor);
+			this.monitor = new ProgressMonitor(size);
+			return throttle(channel.get(getPath(), monitor));
+		} catch (SftpException e) {
+			throw new SFTPException(e);
+		}
+	}
+
+	public InputStream openStream(long offset) {
+		try {
+			this.monitor = new ProgressMonitor(size, offset);
+			return throttle(channel.get(getPath(), monitor, offset));
 		} catch (SftpException e) {
 			throw new SFTPException(e);
 		}
 	}
 
+	InputStream openStream(ProgressMonitor monitor, long offset) {
+		try {
+			return throttle(channel.get(getPath(), monitor, offset));
+		} catch (SftpException e) {
+			throw new SFTPException(e);
+		}
+	}
+
+	void setThrottle(BandwidthLimiter.Share throttle) {
+		this.throttle = throttle;
+	}
+
+	private InputStream throttle(InputStream in) {
+		return throttle != null ? throttle.wrap(in) : in;
+	}
+
 	protected void setMonitor(ProgressMonitor monitor) {
 		this.monitor = monitor;
 	}
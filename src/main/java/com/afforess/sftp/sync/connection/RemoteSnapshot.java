@@ -0,0 +1,90 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Listing of an entire remote tree, grouped by directory the same way {@link SFTPConnection#listFiles(String)}
+ * returns them, including each directory's own entry. Directories are removed as they are consumed.
+ */
+public class RemoteSnapshot {
+	//One record per entry: type, size, mtime and the path relative to the root, NUL terminated
+	static final String FIND_FORMAT = "%y %s %T@ %P\\0";
+	private final ConcurrentMap<String, List<RemoteFile>> directories = new ConcurrentHashMap<String, List<RemoteFile>>();
+	private int entries = 0;
+
+	public List<RemoteFile> take(String directory) {
+		List<RemoteFile> files = directories.remove(directory);
+		return files != null ? files : Collections.<RemoteFile>emptyList();
+	}
+
+	public int size() {
+		return entries;
+	}
+
+	static RemoteSnapshot read(String root, InputStream stream) throws IOException {
+		RemoteSnapshot snapshot = new RemoteSnapshot();
+		InputStream in = new BufferedInputStream(stream);
+		ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b != 0) {
+				record.write(b);
+				continue;
+			}
+			snapshot.add(root, record.toString("UTF-8"));
+			record.reset();
+		}
+		return snapshot;
+	}
+
+	private void add(String root, String record) {
+		String[] fields = record.split(" ", 4);
+		if (fields.length < 4) {
+			return;
+		}
+		boolean isDirectory = fields[0].equals("d");
+		long size = Long.parseLong(fields[1]);
+		int dot = fields[2].indexOf('.');
+		int modified = Integer.parseInt(dot > 0 ? fields[2].substring(0, dot) : fields[2]);
+		String path = fields[3];
+		String directory, parent, name;
+		if (path.isEmpty()) {
+			int lastSlash = root.lastIndexOf('/');
+			if (lastSlash < 0) {
+				return;
+			}
+			directory = root;
+			parent = root.substring(0, lastSlash);
+			name = root.substring(lastSlash + 1);
+		} else {
+			int lastSlash = path.lastIndexOf('/');
+			parent = lastSlash < 0 ? root : root + "/" + path.substring(0, lastSlash);
+			directory = parent;
+			name = path.substring(lastSlash + 1);
+		}
+		RemoteFile file = new RemoteFile(name, parent, null, isDirectory, size, modified, modified);
+		getDirectory(directory).add(file);
+		if (isDirectory && !path.isEmpty()) {
+			//Directories list themselves as well
+			getDirectory(file.getPath()).add(file);
+		}
+		entries++;
+	}
+
+	private List<RemoteFile> getDirectory(String directory) {
+		List<RemoteFile> files = directories.get(directory);
+		if (files == null) {
+			files = new ArrayList<RemoteFile>();
+			directories.put(directory, files);
+		}
+		return files;
+	}
+}
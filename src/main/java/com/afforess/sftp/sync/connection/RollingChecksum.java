@@ -0,0 +1,43 @@
+package com.afforess.sftp.sync.connection;
+
+/**
+ * Adler-32 over a fixed size window that can be moved forward one byte at a time. Values are
+ * identical to {@link java.util.zip.Adler32} (and zlib's adler32) of the same window.
+ */
+class RollingChecksum {
+	private static final int MOD = 65521;
+	private final int length;
+	private int a;
+	private int b;
+	RollingChecksum(byte[] buffer, int offset, int length) {
+		this.length = length;
+		reset(buffer, offset);
+	}
+
+	void reset(byte[] buffer, int offset) {
+		long sumA = 1;
+		long sumB = length;
+		for (int i = 0; i < length; i++) {
+			int x = buffer[offset + i] & 0xFF;
+			sumA += x;
+			sumB += (long) (length - i) * x;
+		}
+		a = (int) (sumA % MOD);
+		b = (int) (sumB % MOD);
+	}
+
+	void roll(byte out, byte in) {
+		int x = out & 0xFF;
+		a = mod(a - x + (in & 0xFF));
+		b = mod((int) ((b - (long) length * x % MOD + a - 1) % MOD));
+	}
+
+	int getValue() {
+		return (b << 16) | a;
+	}
+
+	private static int mod(int value) {
+		value %= MOD;
+		return value < 0 ? value + MOD : value;
+	}
+}
@@ -1,60 +1,72 @@
 package com.afforess.sftp.sync.connection;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.ConnectException;
-import java.net.NoRouteToHostException;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.apache.commons.io.IOUtils;
 
 import com.afforess.sftp.sync.ServerEntry;
 import com.afforess.sftp.sync.exception.SFTPConnectionException;
 import com.afforess.sftp.sync.exception.SFTPException;
-import com.afforess.sftp.sync.exception.SFTPOfflineException;
+import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
-import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SftpException;
 
 public class SFTPConnection {
+	private static final Logger logger = Logger.getLogger("sftp-sync");
+	static final int MAX_COMMAND_LENGTH = 16 * 1024;
+	private static final int TAIL_LENGTH = 64 * 1024;
+	private static final long PROBE_IDLE_TIME = 30 * 1000L;
+	public static final String PARTIAL_SUFFIX = ".sftp-sync-part";
 	private final SSHPool pool;
+	private final SSHSession sshSession;
 	private final Session session;
 	private final ChannelSftp channel;
+	private final BandwidthLimiter.Share upload;
+	private final BandwidthLimiter.Share download;
 	private boolean closed = false;
+	private volatile long lastUsed = System.currentTimeMillis();
+	private volatile boolean broken = false;
+	private volatile long lentAt = 0L;
 	private boolean shutdown = false;
-	protected SFTPConnection(ServerEntry server, SSHPool pool) {
+	protected SFTPConnection(ServerEntry server, SSHPool pool, SSHSession session) {
 		this.pool = pool;
+		this.sshSession = session;
+		this.session = session.getSession();
+		this.upload = BandwidthLimiter.UPLOAD.share(server.getAlias(), server.settings().getBandwidthWeight());
+		this.download = BandwidthLimiter.DOWNLOAD.share(server.getAlias(), server.settings().getBandwidthWeight());
 		try {
-			JSch jsch = new JSch();
-			this.session = jsch.getSession(server.getUsername(), server.getServerHostname(), server.getPort());
-			this.session.setPassword(server.getPassword());
-			java.util.Properties config = new java.util.Properties();
-			config.put("StrictHostKeyChecking", "no");
-			this.session.setConfig(config);
-			this.session.connect();
-			this.channel = (ChannelSftp) session.openChannel("sftp");
+			this.channel = (ChannelSftp) this.session.openChannel("sftp");
 			this.channel.connect();
 			this.channel.cd(server.getRemoteDir());
-		} catch (Exception e) {
-			if (e.getCause() instanceof ConnectException || e.getCause() instanceof UnknownHostException || e.getCause() instanceof NoRouteToHostException || (e.getCause() instanceof SocketException && e.getCause().getMessage().equalsIgnoreCase("Network is unreachable"))) {
-				throw new SFTPOfflineException("No connection to " + server.getServerHostname() + ":" + server.getPort());
-			} else {
-				throw new SFTPConnectionException("Unable to connect", e);
-			}
+		} catch (JSchException | SftpException e) {
+			throw new SFTPConnectionException("Unable to open sftp channel", e);
 		}
 	}
 
 	@SuppressWarnings("unchecked")
 	public List<RemoteFile> listFiles(String directory) {
-		List<RemoteFile> files = new ArrayList<RemoteFile>();
 		Vector<LsEntry> vector;
 		try {
 			vector = channel.ls(directory);
@@ -62,22 +74,35 @@ public class SFTPConnection {
 			if (e.getMessage().contains("No such file")) {
 				return Collections.emptyList();
 			} else {
-				throw new SFTPException(e);
+				throw failure(null, e);
 			}
 		}
-		for (LsEntry entry : vector) {
+		return toRemoteFiles(directory, vector, channel, download);
+	}
+
+	/**
+	 * Turns a directory listing into remote files. A listing of a single file holds just that file, with
+	 * the directory it is in taken from the path.
+	 */
+	static List<RemoteFile> toRemoteFiles(String directory, List<LsEntry> entries, ChannelSftp channel, BandwidthLimiter.Share throttle) {
+		List<RemoteFile> files = new ArrayList<RemoteFile>(entries.size());
+		for (LsEntry entry : entries) {
 			if (entry.getFilename().equals("..")) {
 				continue;
 			}
 			if (entry.getFilename().equals(".")) {
 				int lastSlash = directory.lastIndexOf('/');
-				files.add(new RemoteFile(directory.substring(lastSlash + 1), directory.substring(0, lastSlash), channel, entry.getAttrs()));
+				RemoteFile file = new RemoteFile(directory.substring(lastSlash + 1), directory.substring(0, lastSlash), channel, entry.getAttrs());
+				file.setThrottle(throttle);
+				files.add(file);
 				continue;
 			}
 			if (directory.endsWith(entry.getFilename())) {
 				directory = directory.substring(0, directory.length() - entry.getFilename().length() -1); 
 			}
-			files.add(new RemoteFile(entry.getFilename(), directory, channel, entry.getAttrs()));
+			RemoteFile file = new RemoteFile(entry.getFilename(), directory, channel, entry.getAttrs());
+			file.setThrottle(throttle);
+			files.add(file);
 		}
 		return files;
 	}
@@ -96,30 +121,280 @@ public class SFTPConnection {
 		return null;
 	}
 
+	/**
+	 * Computes the MD5 of every given file in the directory with as few remote md5sum invocations
+	 * as the command line length allows. Digests are passed to the listener as they are read;
+	 * files that could not be hashed are simply not reported.
+	 */
+	public void hashFiles(String directory, Collection<RemoteFile> files, DigestListener listener) {
+		StringBuilder command = new StringBuilder();
+		for (RemoteFile file : files) {
+			if (command.length() == 0) {
+				command.append("cd ").append(quote(directory)).append(" && md5sum --");
+			}
+			command.append(' ').append(quote(file.getName()));
+			if (command.length() > MAX_COMMAND_LENGTH) {
+				hashFiles(command.toString(), listener);
+				command.setLength(0);
+			}
+		}
+		if (command.length() > 0) {
+			hashFiles(command.toString(), listener);
+		}
+	}
+
+	/**
+	 * Lists the whole tree below the directory with a single find exec. Returns null if the
+	 * server does not allow exec or find failed, in which case the tree has to be listed normally.
+	 */
+	public RemoteSnapshot snapshot(String directory) {
+		ChannelExec exec = null;
+		InputStream stream = null;
+		try {
+			exec = (ChannelExec) session.openChannel("exec");
+			exec.setCommand("cd " + quote(directory) + " && find . -printf '" + RemoteSnapshot.FIND_FORMAT + "'");
+			exec.setInputStream(null);
+			exec.setErrStream(System.err);
+			stream = exec.getInputStream();
+			exec.connect();
+			RemoteSnapshot snapshot = RemoteSnapshot.read(directory, stream);
+			while (!exec.isClosed()) {
+				Thread.sleep(10);
+			}
+			if (exec.getExitStatus() != 0) {
+				logger.warning("Remote snapshot of [" + directory + "] failed with exit status " + exec.getExitStatus());
+				return null;
+			}
+			return snapshot;
+		} catch (JSchException | IOException e) {
+			logger.log(Level.WARNING, "Unable to take remote snapshot of [" + directory + "]", e);
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			IOUtils.closeQuietly(stream);
+			if (exec != null) {
+				try {
+					exec.disconnect();
+				} catch (Exception ignore) { }
+			}
+		}
+	}
+
+	private void hashFiles(String command, DigestListener listener) {
+		ChannelExec exec = null;
+		InputStream stream = null;
+		try {
+			exec = (ChannelExec) session.openChannel("exec");
+			exec.setCommand(command);
+			exec.setInputStream(null);
+			exec.setErrStream(System.err);
+			stream = exec.getInputStream();
+			exec.connect();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				//md5sum prefixes the line with a backslash when the name contains one or a newline
+				boolean escaped = line.startsWith("\\");
+				if (escaped) {
+					line = line.substring(1);
+				}
+				if (line.length() < 35 || line.charAt(32) != ' ') {
+					continue;
+				}
+				String name = line.substring(34);
+				if (escaped) {
+					name = unescape(name);
+				}
+				listener.digest(name, line.substring(0, 32).toLowerCase());
+			}
+		} catch (JSchException | IOException e) {
+			throw failure(null, e);
+		} finally {
+			IOUtils.closeQuietly(stream);
+			if (exec != null) {
+				try {
+					exec.disconnect();
+				} catch (Exception ignore) { }
+			}
+		}
+	}
+
+	private static String unescape(String name) {
+		StringBuilder builder = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '\\' && i + 1 < name.length()) {
+				c = name.charAt(++i);
+				builder.append(c == 'n' ? '\n' : c);
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	static String quote(String argument) {
+		return "'" + argument.replace("'", "'\\''") + "'";
+	}
+
+	InputStream openStream(String path, ProgressMonitor monitor, long offset) {
+		try {
+			return download.wrap(channel.get(path, monitor, offset));
+		} catch (SftpException e) {
+			throw failure(null, e);
+		}
+	}
+
+	/**
+	 * Opens an exec channel for the command. The caller connects it and disconnects it when done.
+	 */
+	ChannelExec openExec(String command) {
+		try {
+			ChannelExec exec = (ChannelExec) session.openChannel("exec");
+			exec.setCommand(command);
+			exec.setErrStream(System.err);
+			return exec;
+		} catch (JSchException e) {
+			throw failure(null, e);
+		}
+	}
+
+	OutputStream throttleUpload(OutputStream out) {
+		return upload.wrap(out);
+	}
+
+	InputStream throttleDownload(InputStream in) {
+		return download.wrap(in);
+	}
+
+	public void setModifiedTime(String path, long modified) {
+		try {
+			channel.setMtime(path, (int) (modified / 1000L));
+		} catch (SftpException e) {
+			throw failure("Unable to set modified time of [" + path + "]", e);
+		}
+	}
+
 	public void mkdir(String path) {
 		try {
 			channel.mkdir(path);
 		} catch (SftpException e) {
-			throw new SFTPException("Unable to make directory for [" + path + "]", e);
+			throw failure("Unable to make directory for [" + path + "]", e);
 		}
 	}
 
-	public RemoteFile uploadFile(String directory, File file) {
+	/**
+	 * Uploads the file into the directory, reporting progress to the monitor as it goes. The data is written
+	 * to {@link #partialPath(String)} and renamed over the target once complete, so the target is never seen
+	 * half written. When resuming, the bytes already in the partial file are kept and only the rest is sent.
+	 */
+	public RemoteFile uploadFile(String directory, File file, boolean resume, ProgressMonitor monitor) {
 		FileInputStream fis = null;
+		String path = directory + "/" + file.getName();
+		String part = partialPath(path);
 		try {
 			fis = new FileInputStream(file);
-			ProgressMonitor monitor = new ProgressMonitor(file.length());
-			channel.put(fis, directory + "/" + file.getName(), monitor);
-			RemoteFile remote = getFile(directory + "/" + file.getName());
+			channel.put(upload.wrap(fis), part, monitor, resume ? ChannelSftp.RESUME : ChannelSftp.OVERWRITE);
+			fis.close();
+			channel.setMtime(part, (int) (file.lastModified() / 1000L));
+			rename(part, path);
+			RemoteFile remote = getFile(path);
 			remote.setMonitor(monitor);
 			return remote;
 		} catch (IOException | SftpException e) { 
-			throw new SFTPException(e);
+			throw failure(null, e);
 		} finally {
 			IOUtils.closeQuietly(fis);
 		}
 	}
 
+	/**
+	 * Where uploads of the path are written until complete, next to it so the final rename stays on one filesystem.
+	 */
+	public static String partialPath(String path) {
+		int slash = path.lastIndexOf('/');
+		return path.substring(0, slash + 1) + "." + path.substring(slash + 1) + PARTIAL_SUFFIX;
+	}
+
+	/**
+	 * Moves a finished download over its local target, giving it the target's permissions as
+	 * {@link #rename(String, String)} does remotely, in one step where the filesystem allows it.
+	 */
+	public static void replaceLocal(File from, File to) throws IOException {
+		try {
+			Files.setPosixFilePermissions(from.toPath(), Files.getPosixFilePermissions(to.toPath()));
+		} catch (NoSuchFileException | UnsupportedOperationException e) {
+			// a new file, or a filesystem without POSIX permissions
+		}
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Moves a finished upload over its target, see {@link #rename(String, String)}.
+	 */
+	void replace(String from, String to) {
+		try {
+			rename(from, to);
+		} catch (SftpException e) {
+			throw failure("Unable to rename [" + from + "] to [" + to + "]", e);
+		}
+	}
+
+	/**
+	 * Renames over an existing target, giving the new file the target's permissions as writing into it
+	 * would have. JSch uses the posix-rename extension when the server offers it, which replaces the
+	 * target atomically; plain SFTP rename refuses to overwrite, so the target is removed first on
+	 * servers without it.
+	 */
+	private void rename(String from, String to) throws SftpException {
+		try {
+			channel.chmod(channel.stat(to).getPermissions() & 07777, from);
+		} catch (SftpException e) {
+			if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+				throw e;
+			}
+		}
+		try {
+			channel.rename(from, to);
+		} catch (SftpException e) {
+			if (e.id != ChannelSftp.SSH_FX_FAILURE || channel.getExtension("posix-rename@openssh.com") != null) {
+				throw e;
+			}
+			channel.rm(to);
+			channel.rename(from, to);
+		}
+	}
+
+	/**
+	 * Checks that the remote file's content just before the offset is identical to the local file's.
+	 */
+	public boolean matchesTail(String path, File local, long offset) {
+		int length = (int) Math.min(TAIL_LENGTH, offset);
+		byte[] remoteBytes = new byte[length];
+		byte[] localBytes = new byte[length];
+		InputStream in = null;
+		RandomAccessFile raf = null;
+		try {
+			in = channel.get(path, null, offset - length);
+			IOUtils.readFully(in, remoteBytes);
+			raf = new RandomAccessFile(local, "r");
+			raf.seek(offset - length);
+			raf.readFully(localBytes);
+			return Arrays.equals(remoteBytes, localBytes);
+		} catch (IOException | SftpException e) {
+			return false;
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(raf);
+		}
+	}
+
 	public void close() {
 		if (!closed) {
 			closed = true;
@@ -129,25 +404,74 @@ public class SFTPConnection {
 
 	protected void reclaim() {
 		closed = false;
+		lastUsed = System.currentTimeMillis();
+	}
+
+	protected void lend() {
+		lentAt = System.nanoTime();
 	}
 
+	protected long getHeldTime() {
+		return System.nanoTime() - lentAt;
+	}
+
+	protected long getIdleTime() {
+		return System.currentTimeMillis() - lastUsed;
+	}
+
+	/**
+	 * Checks the session and channel state, which the SSH keepalive keeps current. The server is only
+	 * probed when the connection sat idle long enough to have been dropped silently.
+	 */
 	protected boolean isConnected() {
+		if (isBroken()) {
+			return false;
+		}
+		if (getIdleTime() < PROBE_IDLE_TIME) {
+			return true;
+		}
 		try {
-			return listFiles(".") != null;
+			channel.stat(".");
+			return true;
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
+	/**
+	 * True if the connection's SSH session compresses what it sends.
+	 */
+	public boolean isCompressed() {
+		return sshSession.isCompressed();
+	}
+
+	/**
+	 * True once an operation failed because the connection was lost, so the pool replaces it.
+	 */
+	protected boolean isBroken() {
+		return broken || shutdown || !session.isConnected() || channel.isClosed();
+	}
+
+	private SFTPException failure(String message, Exception e) {
+		if (e instanceof SftpException) {
+			int id = ((SftpException) e).id;
+			if (id == ChannelSftp.SSH_FX_NO_CONNECTION || id == ChannelSftp.SSH_FX_CONNECTION_LOST) {
+				broken = true;
+			}
+		}
+		if (!session.isConnected() || channel.isClosed()) {
+			broken = true;
+		}
+		return message != null ? new SFTPException(message, e) : new SFTPException(e);
+	}
+
 	protected void shutdown() {
 		if (!shutdown) {
 			shutdown = true;
 			try {
 				channel.disconnect();
 			} catch (Exception ignore) { }
-			try {
-				session.disconnect();
-			} catch (Exception ignore) { }
+			pool.release(sshSession);
 		}
 	}
 }
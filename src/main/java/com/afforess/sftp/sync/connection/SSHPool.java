@@ -1,71 +1,237 @@
 package com.afforess.sftp.sync.connection;
 
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import com.afforess.sftp.sync.ServerEntry;
 import com.afforess.sftp.sync.exception.SFTPConnectionException;
+import com.afforess.sftp.sync.exception.SFTPException;
+import com.afforess.sftp.sync.exception.SFTPOfflineException;
 
+/**
+ * Bounded pool of sftp connections. Callers wait in arrival order once every connection is borrowed, and
+ * handshakes run on the borrowing thread without holding any lock, so several can be in flight at once.
+ */
 public class SSHPool {
 	private static final Logger logger = Logger.getLogger("sftp-sync");
+	private static final long IDLE_TIMEOUT = 60 * 1000L;
+	private static final long RETRY_DELAY = 100L;
+	private static final long MAX_RETRY_DELAY = 5 * 1000L;
+	private static final int MAX_TRIES = 6;
 	private final ServerEntry server;
-	private final LinkedList<SFTPConnection> pool = new LinkedList<SFTPConnection>();
-	private final LinkedList<SFTPConnection> inUse = new LinkedList<SFTPConnection>();
+	private final CircuitBreaker breaker;
+	private final ConcurrencyController controller;
+	//Most recently used first, so the oldest idle connections collect at the tail to be evicted
+	private final ConcurrentLinkedDeque<SFTPConnection> idle = new ConcurrentLinkedDeque<SFTPConnection>();
+	private final Set<SFTPConnection> inUse = Collections.newSetFromMap(new ConcurrentHashMap<SFTPConnection, Boolean>());
+	private final LinkedList<SSHSession> sessions = new LinkedList<SSHSession>();
 	private final AtomicInteger connections = new AtomicInteger(0);
-	public SSHPool(ServerEntry server) {
+	private volatile boolean closed = false;
+	private volatile boolean compressed = false;
+	public SSHPool(ServerEntry server, CircuitBreaker breaker, ConcurrencyController controller) {
 		this.server = server;
+		this.breaker = breaker;
+		this.controller = controller;
 	}
 
+	/**
+	 * Borrows an uncompressed connection, or a compressed one when the server always compresses.
+	 */
 	public SFTPConnection getConnection() {
-		synchronized(pool) {
-			SFTPConnection first = pool.poll();
-			while(first != null) {
-				if (first.isConnected()) {
+		return getConnection(false);
+	}
+
+	/**
+	 * Borrows a connection, waiting while the pool is exhausted. Compressible transfers get a compressed
+	 * session if the server's compression setting allows it.
+	 */
+	public SFTPConnection getConnection(boolean compressible) {
+		try {
+			controller.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SFTPException("Interrupted while waiting for a connection");
+		}
+		return borrow(server.settings().getCompression().compress(compressible));
+	}
+
+	/**
+	 * Borrows a connection if one is available without waiting, otherwise returns null.
+	 */
+	public SFTPConnection tryConnection(boolean compressible) {
+		if (!controller.tryAcquire()) {
+			return null;
+		}
+		return borrow(server.settings().getCompression().compress(compressible));
+	}
+
+	private SFTPConnection borrow(boolean compressed) {
+		boolean borrowed = false;
+		try {
+			SFTPConnection connection = null;
+			for (SFTPConnection candidate : idle) {
+				if (candidate.isCompressed() != compressed || !idle.removeFirstOccurrence(candidate)) {
+					continue;
+				}
+				if (candidate.isConnected()) {
 					logger.fine("Reusing connection.");
-					inUse.add(first);
-					return first;
-				} else {
-					first.shutdown();
-					connections.getAndDecrement();
+					connection = candidate;
+					break;
 				}
-				first = pool.poll();
+				discard(candidate);
+			}
+			if (connection == null) {
+				connection = connect(compressed);
+			}
+			connection.lend();
+			inUse.add(connection);
+			borrowed = true;
+			return connection;
+		} finally {
+			if (!borrowed) {
+				controller.release();
 			}
-			SFTPConnection connection;
-			int tries = 0;
-			while(true) {
+		}
+	}
+
+	private SFTPConnection connect(boolean compressed) {
+		long delay = RETRY_DELAY;
+		for (int tries = 1; ; tries++) {
+			if (breaker.isOpen()) {
+				throw new SFTPOfflineException("Server [" + server.getAlias() + "] is unreachable, next attempt in " + (breaker.getRetryTime() - System.currentTimeMillis()) / 1000L + " s");
+			}
+			try {
+				long time = System.nanoTime();
+				logger.fine("Attempting to create new connection.");
+				SSHSession session = getSession(compressed);
+				SFTPConnection connection;
 				try {
-					tries++;
-					long time = System.nanoTime();
-					logger.fine("Attempting to create new connection.");
-					connection = new SFTPConnection(server, this);
-					logger.fine("Time to connect was " + (System.nanoTime() - time) / 1E6D + " ms");
-					break;
+					connection = new SFTPConnection(server, this, session);
 				} catch (SFTPConnectionException e) {
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException e1) {	}
+					//The server may have refused another channel, stop sharing this session
+					synchronized(sessions) {
+						sessions.remove(session);
+					}
+					release(session);
+					throw e;
+				}
+				logger.fine("Time to connect was " + (System.nanoTime() - time) / 1E6D + " ms");
+				if (tries != 1) {
+					logger.info("Took " + tries + " to connect!");
+				}
+				breaker.success();
+				connections.incrementAndGet();
+				return connection;
+			} catch (SFTPOfflineException e) {
+				breaker.trip(e);
+				throw e;
+			} catch (SFTPConnectionException e) {
+				if (closed) {
+					throw e;
+				}
+				controller.failed();
+				if (tries >= MAX_TRIES) {
+					breaker.trip(e);
+					throw e;
+				}
+				try {
+					Thread.sleep(CircuitBreaker.jitter(delay));
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+				delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+			}
+		}
+	}
+
+	/**
+	 * Reserves a channel on a session with room for another, opening a new session if there is none. A session
+	 * being opened is listed with its channels reserved, so borrowers arriving meanwhile wait for it instead
+	 * of each opening their own.
+	 */
+	private SSHSession getSession(boolean compressed) {
+		int limit = Math.max(1, server.settings().getChannelsPerSession());
+		SSHSession session = null;
+		boolean opening = false;
+		synchronized(sessions) {
+			Iterator<SSHSession> i = sessions.iterator();
+			while (i.hasNext()) {
+				SSHSession candidate = i.next();
+				if (!candidate.isPending() && !candidate.isConnected()) {
+					i.remove();
+				} else if (candidate.isCompressed() == compressed && candidate.getChannels() < limit) {
+					session = candidate;
+					break;
 				}
 			}
-			if (tries != 1) {
-				logger.info("Took " + tries + " to connect!");
+			if (session == null) {
+				session = new SSHSession(server, controller.socketFactory(), compressed);
+				sessions.add(session);
+				opening = true;
 			}
-			connections.incrementAndGet();
-			inUse.add(connection);
-			return connection;
+			session.acquire();
+		}
+		try {
+			if (opening) {
+				long time = System.nanoTime();
+				session.connect();
+				logger.fine("Time to open session was " + (System.nanoTime() - time) / 1E6D + " ms");
+				if (compressed) {
+					this.compressed = true;
+				}
+			} else {
+				session.await();
+			}
+		} catch (RuntimeException e) {
+			synchronized(sessions) {
+				sessions.remove(session);
+			}
+			release(session);
+			throw e;
+		}
+		return session;
+	}
+
+	protected void release(SSHSession session) {
+		boolean unused;
+		synchronized(sessions) {
+			unused = session.release();
+			if (unused) {
+				sessions.remove(session);
+			}
+		}
+		if (unused) {
+			session.disconnect();
 		}
 	}
 
 	public void clear() {
-		synchronized(pool) {
-			connections.set(0);
-			SFTPConnection connection;
-			while((connection = pool.poll()) != null) {
-				connection.shutdown();
+		closed = true;
+		if (compressed) {
+			logger.info("Compressed sessions so far " + MeteredCompression.report());
+		}
+		SFTPConnection connection;
+		while((connection = idle.poll()) != null) {
+			discard(connection);
+		}
+		for (SFTPConnection used : inUse) {
+			if (inUse.remove(used)) {
+				discard(used);
+				controller.release();
 			}
-			while((connection = inUse.poll()) != null) {
-				connection.shutdown();
+		}
+		synchronized(sessions) {
+			for (SSHSession session : sessions) {
+				session.disconnect();
 			}
+			sessions.clear();
 		}
 	}
 
@@ -74,10 +240,34 @@ public class SSHPool {
 	}
 
 	protected void free(SFTPConnection conn) {
-		synchronized(pool) {
+		if (!inUse.remove(conn)) {
+			return; //Already discarded by clear
+		}
+		if (closed || conn.isBroken()) {
+			if (!closed) {
+				controller.failed();
+			}
+			discard(conn);
+		} else {
 			conn.reclaim();
-			inUse.remove(conn);
-			pool.add(conn);
+			idle.offerFirst(conn);
 		}
+		controller.release(conn.getHeldTime());
+		evictIdle();
+	}
+
+	private void evictIdle() {
+		SFTPConnection oldest;
+		while ((oldest = idle.peekLast()) != null && oldest.getIdleTime() > IDLE_TIMEOUT) {
+			if (idle.removeLastOccurrence(oldest)) {
+				logger.fine("Closing connection idle for " + oldest.getIdleTime() / 1000L + " s");
+				discard(oldest);
+			}
+		}
+	}
+
+	private void discard(SFTPConnection connection) {
+		connection.shutdown();
+		connections.decrementAndGet();
 	}
 }
@@ -0,0 +1,178 @@
+package com.afforess.sftp.sync.connection;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import com.afforess.sftp.sync.ServerEntry;
+import com.afforess.sftp.sync.SyncSettings;
+import com.afforess.sftp.sync.exception.SFTPConnectionException;
+import com.afforess.sftp.sync.exception.SFTPException;
+import com.afforess.sftp.sync.exception.SFTPOfflineException;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+
+/**
+ * One SSH session shared by several pooled connections, each with its own sftp channel. The channel
+ * count is guarded by the owning pool's session list.
+ */
+class SSHSession {
+	private static final int KEEPALIVE_INTERVAL = 15 * 1000;
+	private static final int KEEPALIVE_COUNT = 3;
+	/**
+	 * How long opening the socket and the handshake may take, so a host that drops packets is
+	 * found down quickly rather than after the system's TCP timeout.
+	 */
+	static final int CONNECT_TIMEOUT = 15 * 1000;
+	private static final Class<?>[] UNREACHABLE = {ConnectException.class, UnknownHostException.class, NoRouteToHostException.class, SocketTimeoutException.class};
+	private static final String COMPRESSION = "zlib@openssh.com,zlib,none";
+	private final ServerEntry server;
+	private final Session session;
+	private final boolean compressed;
+	private int channels = 0;
+	private boolean connected = false;
+	private SFTPException failure = null;
+	/**
+	 * Prepares the session, {@link #connect()} opens it.
+	 */
+	SSHSession(ServerEntry server, SocketFactory factory, boolean compressed) {
+		this.server = server;
+		this.compressed = compressed;
+		try {
+			JSch jsch = new JSch();
+			this.session = jsch.getSession(server.getUsername(), server.getServerHostname(), server.getPort());
+			this.session.setPassword(server.getPassword());
+			this.session.setSocketFactory(factory);
+			java.util.Properties config = new java.util.Properties();
+			config.put("StrictHostKeyChecking", "no");
+			SyncSettings settings = server.settings();
+			if (!settings.getCiphers().isEmpty()) {
+				config.put("cipher.s2c", settings.getCiphers());
+				config.put("cipher.c2s", settings.getCiphers());
+			}
+			if (!settings.getMacs().isEmpty()) {
+				config.put("mac.s2c", settings.getMacs());
+				config.put("mac.c2s", settings.getMacs());
+			}
+			if (!settings.getKex().isEmpty()) {
+				config.put("kex", settings.getKex());
+			}
+			if (compressed) {
+				config.put("compression.s2c", COMPRESSION);
+				config.put("compression.c2s", COMPRESSION);
+				config.put("zlib", MeteredCompression.class.getName());
+				config.put("zlib@openssh.com", MeteredCompression.class.getName());
+			}
+			this.session.setConfig(config);
+			//Missed keepalives disconnect the session, so isConnected() notices dead connections without a round trip
+			this.session.setServerAliveInterval(KEEPALIVE_INTERVAL);
+			this.session.setServerAliveCountMax(KEEPALIVE_COUNT);
+		} catch (JSchException e) {
+			throw new SFTPConnectionException("Unable to connect", e);
+		}
+	}
+
+	/**
+	 * Connects and authenticates, then wakes the threads waiting in {@link #await()}.
+	 */
+	void connect() {
+		SFTPException failure = null;
+		try {
+			session.connect(CONNECT_TIMEOUT);
+		} catch (Exception e) {
+			if (isUnreachable(e)) {
+				failure = new SFTPOfflineException("No connection to " + server.getServerHostname() + ":" + server.getPort());
+			} else {
+				failure = new SFTPConnectionException("Unable to connect", e);
+			}
+		}
+		synchronized(this) {
+			this.connected = failure == null;
+			this.failure = failure;
+			notifyAll();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Waits for the thread opening the session to finish, throwing the failure if it could not connect.
+	 */
+	synchronized void await() {
+		while (!connected && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SFTPException("Interrupted while waiting for a connection");
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * True while the session is still being opened.
+	 */
+	synchronized boolean isPending() {
+		return !connected && failure == null;
+	}
+
+	/**
+	 * True if the server could not be reached at all. JSch keeps the cause of a failure to open the socket
+	 * only when it opens the socket itself; with a socket factory, the cause is only named in the message.
+	 */
+	private static boolean isUnreachable(Exception e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof ConnectException || cause instanceof UnknownHostException || cause instanceof NoRouteToHostException || cause instanceof SocketTimeoutException
+				|| (cause instanceof SocketException && "Network is unreachable".equalsIgnoreCase(cause.getMessage()))) {
+			return true;
+		}
+		String message = String.valueOf(e.getMessage());
+		for (Class<?> type : UNREACHABLE) {
+			if (message.contains(type.getName() + ":")) {
+				return true;
+			}
+		}
+		return message.contains("Network is unreachable");
+	}
+
+	Session getSession() {
+		return session;
+	}
+
+	boolean isCompressed() {
+		return compressed;
+	}
+
+	boolean isConnected() {
+		return session.isConnected();
+	}
+
+	int getChannels() {
+		return channels;
+	}
+
+	void acquire() {
+		channels++;
+	}
+
+	/**
+	 * Returns true once the last channel is released, after which the session should be disconnected.
+	 */
+	boolean release() {
+		return --channels <= 0;
+	}
+
+	void disconnect() {
+		try {
+			session.disconnect();
+		} catch (Exception ignore) { }
+	}
+}
@@ -0,0 +1,174 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Downloads a large file as several byte ranges fetched concurrently over separate pooled connections,
+ * each written at its offset into a preallocated local file.
+ *
+ * <p>The calling thread fetches segments itself as well, over the connection the remote file was
+ * listed on, so the download completes even if no executor thread or pooled connection is free to help.
+ * Helpers never wait for a connection, which would deadlock a pool exhausted by segmented downloads.</p>
+ */
+public class SegmentedDownload {
+	private static final Logger logger = Logger.getLogger("sftp-sync");
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private final SSHPool pool;
+	private final RemoteFile file;
+	private final File target;
+	private final long start;
+	private final int segments;
+	private final Executor executor;
+	private final List<Segment> all = new ArrayList<Segment>();
+	private final Queue<Segment> queue = new ConcurrentLinkedQueue<Segment>();
+	private volatile IOException failure = null;
+	/**
+	 * @param start offset of the first byte to fetch, everything before it is already in the target file
+	 */
+	public SegmentedDownload(SSHPool pool, RemoteFile file, File target, long start, int segments, Executor executor) {
+		this.pool = pool;
+		this.file = file;
+		this.target = target;
+		this.start = start;
+		this.segments = segments;
+		this.executor = executor;
+	}
+
+	public void run() throws IOException {
+		final long size = file.getSize();
+		final ProgressMonitor monitor = new ProgressMonitor(size, start);
+		file.setMonitor(monitor);
+		RandomAccessFile raf = new RandomAccessFile(target, "rw");
+		final FileChannel out = raf.getChannel();
+		try {
+			raf.setLength(size);
+			long segmentSize = (size - start + segments - 1) / segments;
+			for (long offset = start; offset < size; offset += segmentSize) {
+				all.add(new Segment(offset, Math.min(segmentSize, size - offset)));
+			}
+			queue.addAll(all);
+			final CountDownLatch done = new CountDownLatch(queue.size());
+			for (int i = 1; i < segments; i++) {
+				try {
+					executor.execute(worker(out, monitor, done, false));
+				} catch (RejectedExecutionException e) {
+					break;
+				}
+			}
+			worker(out, monitor, done, true).run();
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while downloading [" + file.getPath() + "]");
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			try {
+				out.force(false);
+			} finally {
+				IOUtils.closeQuietly(raf);
+			}
+		}
+	}
+
+	private Runnable worker(final FileChannel out, final ProgressMonitor monitor, final CountDownLatch done, final boolean caller) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				SFTPConnection conn = null;
+				if (!caller && (conn = pool.tryConnection(Compressibility.isCompressible(file.getName()))) == null) {
+					return;
+				}
+				try {
+					Segment segment;
+					while ((segment = queue.poll()) != null) {
+						try {
+							if (failure == null) {
+								fetch(segment, conn, out, monitor);
+								segment.complete = true;
+							}
+						} catch (IOException e) {
+							failure = e;
+						} catch (RuntimeException e) {
+							failure = new IOException(e);
+						} finally {
+							done.countDown();
+						}
+					}
+				} finally {
+					if (conn != null) conn.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the offset up to which every byte has been fetched and forced to disk.
+	 */
+	public long getVerifiedOffset() {
+		long offset = start;
+		for (Segment segment : all) {
+			if (!segment.complete) {
+				break;
+			}
+			offset += segment.length;
+		}
+		return offset;
+	}
+
+	/**
+	 * Fetches the segment over the given connection, or over the remote file's own channel when it is null.
+	 */
+	private void fetch(Segment segment, SFTPConnection conn, FileChannel out, ProgressMonitor monitor) throws IOException {
+		logger.log(Level.FINE, "Fetching [" + file.getPath() + "] bytes " + segment.offset + "-" + (segment.offset + segment.length));
+		InputStream in = null;
+		try {
+			in = conn != null ? conn.openStream(file.getPath(), monitor, segment.offset) : file.openStream(monitor, segment.offset);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long position = segment.offset;
+			long remaining = segment.length;
+			while (remaining > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (read < 0) {
+					throw new IOException("Unexpected end of [" + file.getPath() + "] at " + position);
+				}
+				ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+				while (chunk.hasRemaining()) {
+					position += out.write(chunk, position);
+				}
+				remaining -= read;
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static class Segment {
+		final long offset;
+		final long length;
+		volatile boolean complete = false;
+		Segment(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
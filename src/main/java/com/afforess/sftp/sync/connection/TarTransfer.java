@@ -0,0 +1,411 @@
+package com.afforess.sftp.sync.connection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+
+/**
+ * Transfers many small files of one directory as a single tar stream over an exec channel, saving the
+ * stat, checksum and open round trips each file would otherwise cost. The archive is never stored;
+ * entries are written to (or read from) their files as the stream passes.
+ *
+ * <p>Only the subset of the format needed for that is handled: regular files, with GNU long names and
+ * pax path records for names over 100 bytes. Anything else in a received archive is skipped.</p>
+ */
+public class TarTransfer {
+	private static final Logger logger = Logger.getLogger("sftp-sync");
+	private static final int BLOCK = 512;
+	private static final String LONG_NAME = "././@LongLink";
+	private final SFTPConnection conn;
+	public TarTransfer(SFTPConnection conn) {
+		this.conn = conn;
+	}
+
+	/**
+	 * The server has no tar to run, so no batch can work there.
+	 */
+	public static class UnavailableException extends IOException {
+		private static final long serialVersionUID = 1L;
+		UnavailableException(String message) {
+			super(message);
+		}
+	}
+
+	public interface Listener {
+		/**
+		 * A file is about to be transferred, its progress is reported to the monitor.
+		 */
+		public void started(String name, ProgressMonitor monitor);
+
+		/**
+		 * A file is in place, with the MD5 of the bytes transferred.
+		 */
+		public void finished(String name, String md5);
+	}
+
+	/**
+	 * Downloads the files of the remote directory into the local directory. Each file is written next to its
+	 * target and moved into place once complete, with the remote modification time. New files get the remote
+	 * permissions, replaced ones keep their own. Files that vanished or could not be read are not reported to
+	 * the listener.
+	 */
+	public void download(String directory, List<RemoteFile> files, File localDirectory, Listener listener) throws IOException {
+		List<String> names = new ArrayList<String>(files.size());
+		StringBuilder command = new StringBuilder("cd ").append(SFTPConnection.quote(directory)).append(" && tar -cf - --");
+		for (RemoteFile file : files) {
+			names.add(file.getName());
+			command.append(' ').append(SFTPConnection.quote(file.getName()));
+		}
+		if (command.length() > SFTPConnection.MAX_COMMAND_LENGTH && files.size() > 1) {
+			int half = files.size() / 2;
+			download(directory, files.subList(0, half), localDirectory, listener);
+			download(directory, files.subList(half, files.size()), localDirectory, listener);
+			return;
+		}
+		ChannelExec exec = null;
+		InputStream in = null;
+		int received = 0;
+		try {
+			exec = conn.openExec(command.toString());
+			exec.setInputStream(null);
+			in = new BufferedInputStream(conn.throttleDownload(exec.getInputStream()), 64 * 1024);
+			exec.connect();
+			byte[] header = new byte[BLOCK];
+			String longName = null;
+			while (readBlock(in, header)) {
+				String name = longName != null ? longName : name(header);
+				longName = null;
+				long size = octal(header, 124, 12);
+				char type = (char) header[156];
+				if (type == 'L' || type == 'x') {
+					byte[] data = new byte[(int) size];
+					IOUtils.readFully(in, data);
+					skip(in, padding(size));
+					longName = type == 'L' ? text(data, 0, data.length) : paxPath(data);
+				} else if ((type == '0' || type == '\0') && names.contains(name)) {
+					receive(in, new File(localDirectory, name), (int) octal(header, 100, 8), size, octal(header, 136, 12) * 1000L, listener);
+					received++;
+				} else {
+					skip(in, size + padding(size));
+				}
+			}
+			int status = waitForExit(exec);
+			if (status != 0) {
+				if (received == 0) {
+					throw failure(status);
+				}
+				logger.fine("Batch download from [" + directory + "] received " + received + " of " + files.size() + " files, tar exited with " + status);
+			}
+		} catch (JSchException e) {
+			throw new IOException(e);
+		} finally {
+			IOUtils.closeQuietly(in);
+			if (exec != null) {
+				exec.disconnect();
+			}
+		}
+	}
+
+	private void receive(InputStream in, File local, int mode, long size, long modified, Listener listener) throws IOException {
+		File temp = new File(local.getParentFile(), "." + local.getName() + SFTPConnection.PARTIAL_SUFFIX);
+		ProgressMonitor monitor = new ProgressMonitor(size);
+		listener.started(local.getName(), monitor);
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), md5);
+		try {
+			byte[] buffer = new byte[16 * 1024];
+			long remaining = size;
+			while (remaining > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (read < 0) {
+					throw new EOFException("Archive ended inside [" + local.getName() + "]");
+				}
+				out.write(buffer, 0, read);
+				monitor.count(read);
+				remaining -= read;
+			}
+			out.close();
+			out = null;
+		} finally {
+			IOUtils.closeQuietly(out);
+			if (out != null) {
+				temp.delete();
+			}
+		}
+		skip(in, padding(size));
+		temp.setLastModified(modified);
+		if (!local.exists()) {
+			setMode(temp, mode);
+		}
+		SFTPConnection.replaceLocal(temp, local);
+		listener.finished(local.getName(), Hex.encodeHexString(md5.digest()));
+	}
+
+	/**
+	 * Uploads the local files into the remote directory. The archive is unpacked to partial names, which are
+	 * renamed over their targets only once tar has succeeded, so no target is ever seen half written. New
+	 * files get the permissions of the local file, replaced ones keep their own.
+	 */
+	public void upload(String directory, List<File> files, Listener listener) throws IOException {
+		ChannelExec exec = null;
+		OutputStream out = null;
+		Map<String, String> sent = new HashMap<String, String>();
+		try {
+			exec = conn.openExec("cd " + SFTPConnection.quote(directory) + " && tar -xf -");
+			out = new BufferedOutputStream(conn.throttleUpload(exec.getOutputStream()), 64 * 1024);
+			exec.connect();
+			byte[] buffer = new byte[16 * 1024];
+			for (File file : files) {
+				long size = file.length();
+				String name = partialName(file.getName());
+				byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+				if (encoded.length > 100) {
+					out.write(header(LONG_NAME, 0644, encoded.length + 1, 0L, 'L'));
+					out.write(encoded);
+					out.write(new byte[1 + (int) padding(encoded.length + 1)]);
+				}
+				out.write(header(name, mode(file), size, file.lastModified(), '0'));
+				ProgressMonitor monitor = new ProgressMonitor(size);
+				listener.started(file.getName(), monitor);
+				MessageDigest md5 = DigestUtils.getMd5Digest();
+				InputStream in = new FileInputStream(file);
+				try {
+					long remaining = size;
+					while (remaining > 0) {
+						int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+						if (read < 0) {
+							throw new IOException("[" + file.getAbsolutePath() + "] shrank while being sent");
+						}
+						md5.update(buffer, 0, read);
+						out.write(buffer, 0, read);
+						monitor.count(read);
+						remaining -= read;
+					}
+				} finally {
+					in.close();
+				}
+				out.write(new byte[(int) padding(size)]);
+				sent.put(file.getName(), Hex.encodeHexString(md5.digest()));
+			}
+			out.write(new byte[BLOCK * 2]);
+			out.close();
+			out = null;
+			int status = waitForExit(exec);
+			if (status != 0) {
+				throw failure(status);
+			}
+		} catch (JSchException e) {
+			throw new IOException(e);
+		} finally {
+			IOUtils.closeQuietly(out);
+			if (exec != null) {
+				exec.disconnect();
+			}
+		}
+		for (File file : files) {
+			conn.replace(directory + "/" + partialName(file.getName()), directory + "/" + file.getName());
+			listener.finished(file.getName(), sent.get(file.getName()));
+		}
+	}
+
+	private static IOException failure(int status) {
+		//The shell's status for a command it could not find or run
+		if (status == 127 || status == 126) {
+			return new UnavailableException("tar is not available, exited with " + status);
+		}
+		return new IOException("tar exited with " + status);
+	}
+
+	/**
+	 * The permission bits of the local file, or the usual ones where the file system has none.
+	 */
+	private static int mode(File file) {
+		try {
+			int mode = 0;
+			for (PosixFilePermission permission : Files.getPosixFilePermissions(file.toPath())) {
+				mode |= 0400 >> permission.ordinal();
+			}
+			return mode;
+		} catch (UnsupportedOperationException | IOException e) {
+			return file.canExecute() ? 0755 : 0644;
+		}
+	}
+
+	/**
+	 * Gives the file the permission bits, where the file system has them.
+	 */
+	private static void setMode(File file, int mode) throws IOException {
+		Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+		for (PosixFilePermission permission : PosixFilePermission.values()) {
+			if ((mode & (0400 >> permission.ordinal())) != 0) {
+				permissions.add(permission);
+			}
+		}
+		try {
+			Files.setPosixFilePermissions(file.toPath(), permissions);
+		} catch (UnsupportedOperationException e) {
+			// the file keeps the default permissions
+		}
+	}
+
+	private static String partialName(String name) {
+		return "." + name + SFTPConnection.PARTIAL_SUFFIX;
+	}
+
+	private static byte[] header(String name, int mode, long size, long modified, char type) {
+		byte[] header = new byte[BLOCK];
+		byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(encoded, 0, header, 0, Math.min(100, encoded.length));
+		putOctal(header, 100, 8, mode);
+		putOctal(header, 108, 8, 0);
+		putOctal(header, 116, 8, 0);
+		putOctal(header, 124, 12, size);
+		putOctal(header, 136, 12, modified / 1000L);
+		header[156] = (byte) type;
+		System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		long checksum = 0L;
+		for (byte b : header) {
+			checksum += b & 0xFF;
+		}
+		putOctal(header, 148, 7, checksum);
+		return header;
+	}
+
+	/**
+	 * Writes the value as zero padded octal digits followed by a NUL, filling the field.
+	 */
+	private static void putOctal(byte[] header, int offset, int length, long value) {
+		String digits = Long.toOctalString(value);
+		while (digits.length() < length - 1) {
+			digits = "0" + digits;
+		}
+		System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+		header[offset + length - 1] = 0;
+	}
+
+	private static long octal(byte[] header, int offset, int length) throws IOException {
+		long value = 0L;
+		for (int i = offset; i < offset + length; i++) {
+			byte b = header[i];
+			if (b == 0 || b == ' ') {
+				if (value > 0) {
+					break;
+				}
+				continue;
+			}
+			if (b < '0' || b > '7') {
+				throw new IOException("Malformed tar header");
+			}
+			value = value * 8 + (b - '0');
+		}
+		return value;
+	}
+
+	private static String name(byte[] header) {
+		String name = text(header, 0, 100);
+		if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r' && header[345] != 0) {
+			name = text(header, 345, 155) + "/" + name;
+		}
+		return name;
+	}
+
+	private static String text(byte[] data, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && data[end] != 0) {
+			end++;
+		}
+		return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Finds the path in pax extended header records, each "length key=value\n".
+	 */
+	private static String paxPath(byte[] data) {
+		int offset = 0;
+		while (offset < data.length) {
+			int space = offset;
+			while (space < data.length && data[space] != ' ') {
+				space++;
+			}
+			if (space >= data.length) {
+				break;
+			}
+			int length = Integer.parseInt(new String(data, offset, space - offset, StandardCharsets.US_ASCII));
+			if (length <= 0 || offset + length > data.length) {
+				break;
+			}
+			String record = new String(data, space + 1, offset + length - space - 2, StandardCharsets.UTF_8);
+			if (record.startsWith("path=")) {
+				return record.substring(5);
+			}
+			offset += length;
+		}
+		return null;
+	}
+
+	private static long padding(long size) {
+		return (BLOCK - size % BLOCK) % BLOCK;
+	}
+
+	/**
+	 * Reads the next header block, returning false at the end of the archive.
+	 */
+	private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+		int read = IOUtils.read(in, block);
+		if (read == 0) {
+			return false;
+		}
+		if (read < BLOCK) {
+			throw new EOFException("Truncated tar header");
+		}
+		for (byte b : block) {
+			if (b != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void skip(InputStream in, long count) throws IOException {
+		IOUtils.skipFully(in, count);
+	}
+
+	private static int waitForExit(ChannelExec exec) {
+		while (!exec.isClosed()) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+		}
+		return exec.getExitStatus();
+	}
+}
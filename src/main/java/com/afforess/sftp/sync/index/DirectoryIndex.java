@@ -0,0 +1,66 @@
+package com.afforess.sftp.sync.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DirectoryIndex {
+	private final String directory;
+	private final Map<String, IndexEntry> entries = new HashMap<String, IndexEntry>();
+	private int references = 0;
+	private boolean dirty = false;
+	DirectoryIndex(String directory) {
+		this.directory = directory;
+	}
+
+	public String getDirectory() {
+		return directory;
+	}
+
+	public synchronized IndexEntry get(String name) {
+		return entries.get(name);
+	}
+
+	public synchronized void put(IndexEntry entry) {
+		entries.put(entry.getName(), entry);
+		dirty = true;
+	}
+
+	public synchronized void remove(String name) {
+		if (entries.remove(name) != null) {
+			dirty = true;
+		}
+	}
+
+	public synchronized void retainAll(Collection<String> names) {
+		if (entries.keySet().retainAll(names)) {
+			dirty = true;
+		}
+	}
+
+	synchronized List<IndexEntry> getEntries() {
+		return new ArrayList<IndexEntry>(entries.values());
+	}
+
+	synchronized void load(IndexEntry entry) {
+		entries.put(entry.getName(), entry);
+	}
+
+	synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	synchronized void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+
+	synchronized void retain() {
+		references++;
+	}
+
+	synchronized boolean release() {
+		return --references == 0;
+	}
+}
@@ -0,0 +1,100 @@
+package com.afforess.sftp.sync.index;
+
+import java.io.File;
+
+import com.afforess.sftp.sync.connection.RemoteFile;
+
+public class IndexEntry {
+	private final String name;
+	private final long localSize;
+	private final long localModified;
+	private final String localMd5;
+	private final long remoteSize;
+	private final long remoteModified;
+	private final String remoteMd5;
+	private final boolean partial;
+	IndexEntry(String name, long localSize, long localModified, String localMd5, long remoteSize, long remoteModified, String remoteMd5, boolean partial) {
+		this.name = name;
+		this.localSize = localSize;
+		this.localModified = localModified;
+		this.localMd5 = localMd5;
+		this.remoteSize = remoteSize;
+		this.remoteModified = remoteModified;
+		this.remoteMd5 = remoteMd5;
+		this.partial = partial;
+	}
+
+	public IndexEntry(File local, String localMd5, RemoteFile remote, String remoteMd5) {
+		this(local, local.length(), local.lastModified(), localMd5, remote, remoteMd5);
+	}
+
+	/**
+	 * Records the local file with the size and modification time it had when localMd5 was computed, so a
+	 * file changed since is hashed again instead of trusting the old MD5.
+	 */
+	public IndexEntry(File local, long localSize, long localModified, String localMd5, RemoteFile remote, String remoteMd5) {
+		this(local.getName(), localSize, localModified, local.exists() ? localMd5 : null,
+				remote != null ? remote.getSize() : -1L, remote != null ? remote.getModifiedTime() : -1L, remote != null ? remoteMd5 : null, false);
+	}
+
+	/**
+	 * Marks an upload of the local file, as it was when localMd5 was computed, as started but not yet finished.
+	 */
+	public static IndexEntry partialUpload(File local, long localSize, long localModified, String localMd5) {
+		return new IndexEntry(local.getName(), localSize, localModified, localMd5, -1L, -1L, null, true);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getLocalMd5() {
+		return localMd5;
+	}
+
+	public String getRemoteMd5() {
+		return remoteMd5;
+	}
+
+	public long getLocalSize() {
+		return localSize;
+	}
+
+	public long getLocalModified() {
+		return localModified;
+	}
+
+	public long getRemoteSize() {
+		return remoteSize;
+	}
+
+	public long getRemoteModified() {
+		return remoteModified;
+	}
+
+	public boolean isPartial() {
+		return partial;
+	}
+
+	/**
+	 * True if an upload of this exact local file was interrupted and can be resumed.
+	 */
+	public boolean isPartialUpload(File local) {
+		return partial && matchesLocal(local);
+	}
+
+	public boolean matchesLocal(File file) {
+		return localMd5 != null && file.exists() && file.length() == localSize && file.lastModified() == localModified;
+	}
+
+	public boolean matchesRemote(RemoteFile file) {
+		return remoteMd5 != null && file != null && file.getSize() == remoteSize && file.getModifiedTime() == remoteModified;
+	}
+
+	/**
+	 * True if neither copy has changed since they were last recorded as identical.
+	 */
+	public boolean isSynced(File local, RemoteFile remote) {
+		return matchesLocal(local) && matchesRemote(remote) && localMd5.equals(remoteMd5);
+	}
+}
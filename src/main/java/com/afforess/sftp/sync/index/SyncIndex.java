@@ -0,0 +1,182 @@
+package com.afforess.sftp.sync.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.afforess.sftp.sync.ServerEntry;
+import com.afforess.sftp.sync.WorkingDirectory;
+
+/**
+ * Persistent record of the last known size, modification time and MD5 of every synced file,
+ * stored as one small file per remote directory so only directories currently being
+ * traversed are held in memory.
+ *
+ * <p>Index files are written to a temporary name and moved into place, and carry a CRC32
+ * trailer. A missing, torn or corrupt index file is treated as empty, which only costs
+ * re-hashing the files in that directory.</p>
+ */
+public class SyncIndex {
+	private static final Logger logger = Logger.getLogger("sftp-sync");
+	private static final int VERSION = 4;
+	private final File root;
+	private final Map<String, DirectoryIndex> open = new HashMap<String, DirectoryIndex>();
+	public SyncIndex(ServerEntry server) {
+		File indexes = new File(WorkingDirectory.get("sftp-sync"), "index");
+		this.root = new File(indexes, server.getAlias().replaceAll("[^A-Za-z0-9._-]", "_"));
+	}
+
+	public synchronized DirectoryIndex open(String directory) {
+		DirectoryIndex index = open.get(directory);
+		if (index == null) {
+			index = load(directory);
+			open.put(directory, index);
+		}
+		index.retain();
+		return index;
+	}
+
+	public synchronized void retain(DirectoryIndex index) {
+		index.retain();
+	}
+
+	public synchronized void release(DirectoryIndex index) {
+		if (index.release()) {
+			open.remove(index.getDirectory());
+			save(index);
+		}
+	}
+
+	/**
+	 * Saves the index now if it has unsaved changes, without waiting for it to be released.
+	 */
+	public synchronized void save(DirectoryIndex index) {
+		if (index.isDirty()) {
+			write(index);
+		}
+	}
+
+	/**
+	 * Saves every open index with unsaved changes. Tasks cut short by a pause or shutdown never release
+	 * their indexes, so this keeps what they recorded.
+	 */
+	public synchronized void flush() {
+		for (DirectoryIndex index : open.values()) {
+			save(index);
+		}
+	}
+
+	private File getIndexFile(String directory) {
+		String hash = DigestUtils.md5Hex(directory);
+		return new File(new File(root, hash.substring(0, 2)), hash.substring(2) + ".idx");
+	}
+
+	private DirectoryIndex load(String directory) {
+		DirectoryIndex index = new DirectoryIndex(directory);
+		File file = getIndexFile(directory);
+		if (!file.exists()) {
+			return index;
+		}
+		DataInputStream in = null;
+		try {
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+			in = new DataInputStream(checked);
+			if (in.readInt() != VERSION || !directory.equals(in.readUTF())) {
+				return index;
+			}
+			int count = in.readInt();
+			DirectoryIndex loaded = new DirectoryIndex(directory);
+			for (int i = 0; i < count; i++) {
+				loaded.load(new IndexEntry(in.readUTF(), in.readLong(), in.readLong(), readHash(in), in.readLong(), in.readLong(), readHash(in), in.readBoolean()));
+			}
+			long crc = checked.getChecksum().getValue();
+			if (in.readLong() != crc) {
+				logger.warning("Discarding corrupt index for [" + directory + "]");
+				return index;
+			}
+			return loaded;
+		} catch (EOFException e) {
+			logger.warning("Discarding truncated index for [" + directory + "]");
+			return index;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to read index for [" + directory + "]", e);
+			return index;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private void write(DirectoryIndex index) {
+		File file = getIndexFile(index.getDirectory());
+		List<IndexEntry> entries = index.getEntries();
+		if (entries.isEmpty()) {
+			file.delete();
+			index.setDirty(false);
+			return;
+		}
+		file.getParentFile().mkdirs();
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), new CRC32());
+			out = new DataOutputStream(checked);
+			out.writeInt(VERSION);
+			out.writeUTF(index.getDirectory());
+			out.writeInt(entries.size());
+			for (IndexEntry entry : entries) {
+				out.writeUTF(entry.getName());
+				out.writeLong(entry.getLocalSize());
+				out.writeLong(entry.getLocalModified());
+				writeHash(out, entry.getLocalMd5());
+				out.writeLong(entry.getRemoteSize());
+				out.writeLong(entry.getRemoteModified());
+				writeHash(out, entry.getRemoteMd5());
+				out.writeBoolean(entry.isPartial());
+			}
+			out.flush();
+			out.writeLong(checked.getChecksum().getValue());
+			out.close();
+			out = null;
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			index.setDirty(false);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to write index for [" + index.getDirectory() + "]", e);
+			temp.delete();
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private static String readHash(DataInputStream in) throws IOException {
+		String hash = in.readUTF();
+		return hash.isEmpty() ? null : hash;
+	}
+
+	private static void writeHash(DataOutputStream out, String hash) throws IOException {
+		out.writeUTF(hash == null ? "" : hash);
+	}
+}